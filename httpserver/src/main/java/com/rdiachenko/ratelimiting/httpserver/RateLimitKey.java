@@ -0,0 +1,70 @@
+package com.rdiachenko.ratelimiting.httpserver;
+
+import com.rdiachenko.ratelimiting.RateLimitDecision;
+import com.rdiachenko.ratelimiting.RateLimiter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Determines the key an exchange is limited under, and asks the limiter about it.
+ */
+public interface RateLimitKey {
+
+  /**
+   * Determines if the exchange is allowed under its key.
+   *
+   * @param limiter  The rate limiter to ask.
+   * @param exchange The exchange to limit.
+   * @param decision The holder to write the details of the decision into.
+   * @return true if the exchange is allowed, false otherwise.
+   */
+  boolean allowed(RateLimiter limiter, HttpExchange exchange, RateLimitDecision decision);
+
+  /**
+   * Limits exchanges by the value of a request header, such as an API key.
+   * Exchanges without the header are limited by their remote address.
+   *
+   * @param name The name of the header.
+   * @return the key.
+   */
+  static RateLimitKey header(String name) {
+    RateLimitKey remoteAddress = remoteAddress();
+    return (limiter, exchange, decision) -> {
+      String value = exchange.getRequestHeaders().getFirst(name);
+      return value != null
+          ? limiter.allowed(value, decision)
+          : remoteAddress.allowed(limiter, exchange, decision);
+    };
+  }
+
+  /**
+   * Limits exchanges by the remote IP address. IPv4 addresses are passed to the
+   * limiter as numeric keys, so that no string is built for them.
+   *
+   * @return the key.
+   */
+  static RateLimitKey remoteAddress() {
+    return (limiter, exchange, decision) -> {
+      InetAddress address = exchange.getRemoteAddress().getAddress();
+      if (address instanceof Inet4Address) {
+        byte[] bytes = address.getAddress();
+        long key = (bytes[0] & 0xFFL) << 24 | (bytes[1] & 0xFFL) << 16
+            | (bytes[2] & 0xFFL) << 8 | (bytes[3] & 0xFFL);
+        return limiter.allowed(key, decision);
+      }
+      return limiter.allowed(address.getHostAddress(), decision);
+    };
+  }
+
+  /**
+   * Limits exchanges by the path of the request URI, for a limit per resource.
+   *
+   * @return the key.
+   */
+  static RateLimitKey path() {
+    return (limiter, exchange, decision)
+        -> limiter.allowed(exchange.getRequestURI().getPath(), decision);
+  }
+}
@@ -0,0 +1,91 @@
+package com.rdiachenko.ratelimiting.httpserver;
+
+import com.rdiachenko.ratelimiting.RateLimitDecision;
+import com.rdiachenko.ratelimiting.RateLimiter;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A filter which enforces a rate limit on the exchanges of an
+ * {@link com.sun.net.httpserver.HttpServer} context.
+ *
+ * <p>Every exchange gets the {@code RateLimit-Limit}, {@code RateLimit-Remaining}
+ * and {@code RateLimit-Reset} headers of the IETF rate limit headers draft, with the
+ * reset in seconds. Rejected exchanges are answered with 429 Too Many Requests and
+ * a {@code Retry-After} header in seconds, without reaching the handler.
+ *
+ * <p>Header values up to 1024 are taken from a table of strings
+ * built once, and decisions are written into a holder reused per thread, so that
+ * most exchanges build no strings for the headers.
+ */
+public class RateLimitingFilter extends Filter {
+
+  private static final int CACHED_VALUES = 1024;
+  private static final String[] VALUES = new String[CACHED_VALUES + 1];
+
+  static {
+    for (int i = 0; i < VALUES.length; i++) {
+      VALUES[i] = Integer.toString(i);
+    }
+  }
+
+  private final RateLimiter limiter;
+  private final RateLimitKey key;
+  private final String limit;
+  private final ThreadLocal<RateLimitDecision> decisions
+      = ThreadLocal.withInitial(RateLimitDecision::new);
+
+  /**
+   * Constructs a RateLimitingFilter.
+   *
+   * @param limiter The rate limiter to enforce.
+   * @param key     The key to limit exchanges under.
+   * @param limit   The number of requests the limiter allows in a burst,
+   *                reported in the {@code RateLimit-Limit} header.
+   */
+  public RateLimitingFilter(RateLimiter limiter, RateLimitKey key, int limit) {
+    this.limiter = limiter;
+    this.key = key;
+    this.limit = value(limit);
+  }
+
+  @Override
+  public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+    RateLimitDecision decision = decisions.get();
+    boolean allowed = key.allowed(limiter, exchange, decision);
+
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("RateLimit-Limit", limit);
+    headers.set("RateLimit-Remaining", value(decision.remaining()));
+    headers.set("RateLimit-Reset", value(seconds(decision.resetNanos())));
+
+    if (allowed) {
+      chain.doFilter(exchange);
+    } else {
+      headers.set("Retry-After", value(seconds(decision.retryAfterNanos())));
+      exchange.sendResponseHeaders(429, -1);
+      exchange.close();
+    }
+  }
+
+  @Override
+  public String description() {
+    return "Rate limiting filter";
+  }
+
+  /**
+   * Rounds the given duration up to whole seconds, so that
+   * clients retrying after it are not rejected again.
+   */
+  private static long seconds(long nanos) {
+    return Math.ceilDiv(nanos, TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private static String value(long value) {
+    return value >= 0 && value <= CACHED_VALUES ? VALUES[(int) value] : Long.toString(value);
+  }
+}
@@ -0,0 +1,121 @@
+package com.rdiachenko.ratelimiting.httpserver;
+
+import com.rdiachenko.ratelimiting.TokenBucketRateLimiter;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+
+/**
+ * A load test which measures the latency the {@link RateLimitingFilter} adds to
+ * exchanges, by sending the same concurrent load to a context without the filter
+ * and to a context with it, and comparing the percentiles of both.
+ *
+ * <p>The limit is high enough that every request is allowed, so both contexts run
+ * the same handler. Run it with {@code gradle :httpserver:loadTest}, optionally
+ * passing the number of clients and requests per client as arguments.
+ */
+public final class RateLimitingFilterLoadTest {
+
+  private static final int KEYS = 1024;
+
+  private RateLimitingFilterLoadTest() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+    server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    HttpHandler handler = exchange -> {
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    };
+    server.createContext("/baseline", handler);
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(
+        Integer.MAX_VALUE, Duration.ofSeconds(1), Integer.MAX_VALUE, Clock.systemUTC(), GREEDY);
+    server.createContext("/limited", handler).getFilters()
+        .add(new RateLimitingFilter(limiter, RateLimitKey.header("X-Api-Key"), Integer.MAX_VALUE));
+    server.start();
+
+    try (HttpClient client = HttpClient.newBuilder()
+        .executor(Executors.newVirtualThreadPerTaskExecutor()).build()) {
+      String base = "http://127.0.0.1:" + server.getAddress().getPort();
+      run(client, base + "/baseline", clients, requests / 10); // Warm-up.
+      run(client, base + "/limited", clients, requests / 10);
+
+      long[] baseline = run(client, base + "/baseline", clients, requests);
+      long[] limited = run(client, base + "/limited", clients, requests);
+
+      report("baseline", baseline);
+      report("limited", limited);
+      System.out.printf("added: p50=%dus p99=%dus%n",
+          (percentile(limited, 0.50) - percentile(baseline, 0.50)) / 1_000,
+          (percentile(limited, 0.99) - percentile(baseline, 0.99)) / 1_000);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Sends requests from concurrent clients, each with its own API keys,
+   * and returns the sorted latencies in nanoseconds.
+   */
+  private static long[] run(HttpClient client, String url, int clients, int requests)
+      throws Exception {
+    List<Future<long[]>> futures = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int c = 0; c < clients; c++) {
+        int clientId = c;
+        futures.add(executor.submit(() -> {
+          long[] latencies = new long[requests];
+          for (int r = 0; r < requests; r++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .header("X-Api-Key", "key-" + (clientId * requests + r) % KEYS)
+                .build();
+            long start = System.nanoTime();
+            HttpResponse<Void> response
+                = client.send(request, HttpResponse.BodyHandlers.discarding());
+            latencies[r] = System.nanoTime() - start;
+            if (response.statusCode() != 204) {
+              throw new IllegalStateException("Unexpected status " + response.statusCode());
+            }
+          }
+          return latencies;
+        }));
+      }
+    }
+
+    long[] all = new long[clients * requests];
+    for (int c = 0; c < clients; c++) {
+      System.arraycopy(futures.get(c).get(), 0, all, c * requests, requests);
+    }
+    Arrays.sort(all);
+    return all;
+  }
+
+  private static void report(String name, long[] latencies) {
+    System.out.printf("%s: requests=%d p50=%dus p99=%dus p999=%dus%n", name, latencies.length,
+        percentile(latencies, 0.50) / 1_000, percentile(latencies, 0.99) / 1_000,
+        percentile(latencies, 0.999) / 1_000);
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+  }
+}
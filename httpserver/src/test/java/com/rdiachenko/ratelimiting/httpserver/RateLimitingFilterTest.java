@@ -0,0 +1,101 @@
+package com.rdiachenko.ratelimiting.httpserver;
+
+import com.rdiachenko.ratelimiting.TokenBucketRateLimiter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RateLimitingFilterTest {
+
+  private HttpServer server;
+  private final HttpClient client = HttpClient.newHttpClient();
+
+  @BeforeEach
+  void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.start();
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  void doFilter_requestsOverLimit_areRejectedWithRateLimitHeaders() throws Exception {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(2, Duration.ofSeconds(10), 2, clock, GREEDY);
+    context("/api").getFilters().add(
+        new RateLimitingFilter(limiter, RateLimitKey.header("X-Api-Key"), 2));
+
+    HttpResponse<String> first = send("/api", "bob");
+    assertEquals(200, first.statusCode(), "Bob's request 1 must pass");
+    assertEquals(Optional.of("2"), first.headers().firstValue("RateLimit-Limit"),
+        "The limit must be reported");
+    assertEquals(Optional.of("1"), first.headers().firstValue("RateLimit-Remaining"),
+        "Bob has 1 request left");
+    assertEquals(Optional.of("5"), first.headers().firstValue("RateLimit-Reset"),
+        "Bob's bucket is full again in 5 seconds");
+
+    assertEquals(200, send("/api", "bob").statusCode(), "Bob's request 2 must pass");
+
+    HttpResponse<String> third = send("/api", "bob");
+    assertEquals(429, third.statusCode(), "Bob's request 3 must not be allowed");
+    assertEquals(Optional.of("0"), third.headers().firstValue("RateLimit-Remaining"),
+        "Bob has no requests left");
+    assertEquals(Optional.of("5"), third.headers().firstValue("Retry-After"),
+        "Bob must retry once a token is refilled in 5 seconds");
+    assertEquals("", third.body(), "The handler must not be reached");
+
+    assertEquals(200, send("/api", "alice").statusCode(),
+        "Alice's request 1 must pass, because she has her own key");
+  }
+
+  @Test
+  void doFilter_remoteAddressKey_limitsClientsByAddress() throws Exception {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(1, Duration.ofSeconds(1), 1, clock, GREEDY);
+    context("/api").getFilters().add(
+        new RateLimitingFilter(limiter, RateLimitKey.remoteAddress(), 1));
+
+    assertEquals(200, send("/api", "bob").statusCode(), "The request 1 from 127.0.0.1 must pass");
+    assertEquals(429, send("/api", "alice").statusCode(),
+        "The request 2 from 127.0.0.1 must not be allowed, regardless of the API key");
+  }
+
+  private HttpContext context(String path) {
+    return server.createContext(path, exchange -> {
+      byte[] body = "ok".getBytes();
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+  }
+
+  private HttpResponse<String> send(String path, String apiKey) throws Exception {
+    URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    HttpRequest request = HttpRequest.newBuilder(uri).header("X-Api-Key", apiKey).build();
+    return client.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+}
@@ -0,0 +1,67 @@
+package com.rdiachenko.ratelimiting;
+
+import com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the generic greedy token bucket rate limiter with the one specialized by
+ * {@link SpecializedRateLimiters}, on a single thread, for a period which is a power
+ * of two in nanoseconds and for one which is not.
+ *
+ * <p>The clock advances by a millisecond on every request, so every request refills,
+ * and the rate is high enough that most requests are allowed. Run it with
+ * {@code gradle :lib:jmh}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpecializedRateLimitersBenchmark {
+
+  // 2^30 ns is about a second.
+  @Param({"1000000000", "1073741824"})
+  public long periodNanos;
+
+  private final PinnedClock clock = new PinnedClock(ZoneOffset.UTC);
+  private RateLimiter generic;
+  private RateLimiter specialized;
+  private long key;
+  private long millis;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Duration period = Duration.ofNanos(periodNanos);
+    generic = new TokenBucketRateLimiter(1_000, period, 1_000_000, clock, RefillStrategy.GREEDY);
+    specialized = SpecializedRateLimiters.tokenBucket(1_000, period, 1_000_000, clock,
+        RefillStrategy.GREEDY);
+  }
+
+  @Benchmark
+  public boolean generic() {
+    clock.pin(++millis);
+    return generic.allowed(key++ & 1023);
+  }
+
+  @Benchmark
+  public boolean specialized() {
+    clock.pin(++millis);
+    return specialized.allowed(key++ & 1023);
+  }
+}
@@ -0,0 +1,23 @@
+package com.rdiachenko.ratelimiting;
+
+import java.io.Serializable;
+
+/**
+ * The state of the bucket of a single user at a point in time, as exported by a
+ * {@link TransferableRateLimiter}. Snapshots are plain serializable values, so that
+ * they can be sent to another process, such as the new owner of a partition of a
+ * {@link PartitionedRateLimiter}.
+ *
+ * @param userId    The ID of the user the bucket belongs to,
+ *                  or null if it belongs to a numeric key.
+ * @param key       The numeric key the bucket belongs to, 0 for a user ID.
+ * @param level     The number of tokens in a token bucket,
+ *                  or the water level of a leaky bucket.
+ * @param carry     The fraction of a token refilled since the timestamp,
+ *                  in units of the limiter's refill rate, 0 for a leaky bucket.
+ * @param timestamp The time of the last refill or leak in nanoseconds,
+ *                  which nodes exchanging snapshots must agree on.
+ */
+public record BucketSnapshot(String userId, long key, long level, long carry, long timestamp)
+    implements Serializable {
+}
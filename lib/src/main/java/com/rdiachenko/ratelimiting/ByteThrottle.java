@@ -0,0 +1,92 @@
+package com.rdiachenko.ratelimiting;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Grants permits for transferring bytes from a token bucket with one token per byte.
+ *
+ * <p>Tokens are taken from the bucket in chunks and kept as local credit, so that
+ * small transfers do not each go to the shared bucket. When the bucket is empty,
+ * the throttle waits for a chunk worth of tokens rather than a single one, so that
+ * a transfer is not split into many tiny ones. The wait is computed by the bucket
+ * from its own refill rate, see {@link RateLimitDecision#batchRetryAfterNanos()}. Credit left when the channel is
+ * closed, at most a chunk, is lost.
+ */
+final class ByteThrottle {
+
+  private final TokenBucketRateLimiter bucket;
+  private final String key;
+  private final int chunkSize;
+  private final RateLimitDecision decision = new RateLimitDecision(); // Guarded by this.
+  private long credit; // Guarded by this.
+
+  /**
+   * Constructs a ByteThrottle.
+   *
+   * @param bucket    The token bucket to take a token per byte from.
+   * @param key       The key of the bucket, such as the tenant ID.
+   * @param chunkSize The number of tokens to take from the bucket at once.
+   */
+  ByteThrottle(TokenBucketRateLimiter bucket, String key, int chunkSize) {
+    this.bucket = bucket;
+    this.key = key;
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  /**
+   * Grants permits for up to the given number of bytes without waiting.
+   *
+   * @param bytes The number of bytes to transfer, at least 1.
+   * @return the number of bytes granted, or if none, the negated number
+   *         of nanoseconds after which a chunk is expected to be available.
+   */
+  synchronized long tryTake(int bytes) {
+    if (credit == 0) {
+      // Wait for a chunk, or for the bytes to transfer if fewer, once the bucket is empty.
+      decision.batch(Math.min(bytes, chunkSize));
+      credit = bucket.acquire(key, chunkSize, decision);
+      if (credit == 0) {
+        return -Math.max(1, Math.max(decision.retryAfterNanos(), decision.batchRetryAfterNanos()));
+      }
+    }
+    long granted = Math.min(credit, bytes);
+    credit -= granted;
+    return granted;
+  }
+
+  /**
+   * Grants permits for up to the given number of bytes,
+   * parking the thread until some are available.
+   *
+   * @param bytes The number of bytes to transfer, at least 1.
+   * @return the number of bytes granted.
+   * @throws InterruptedIOException if the thread is interrupted while waiting.
+   */
+  int take(int bytes) throws InterruptedIOException {
+    while (true) {
+      long granted = tryTake(bytes);
+      if (granted > 0) {
+        return (int) granted;
+      }
+
+      long deadline = System.nanoTime() - granted;
+      for (long delay = -granted; delay > 0; delay = deadline - System.nanoTime()) {
+        LockSupport.parkNanos(this, delay);
+        if (Thread.interrupted()) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns permits for bytes which were granted but not transferred.
+   *
+   * @param bytes The number of bytes not transferred.
+   */
+  synchronized void refund(long bytes) {
+    credit += bytes;
+  }
+}
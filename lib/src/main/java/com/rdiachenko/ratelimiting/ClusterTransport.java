@@ -0,0 +1,43 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.List;
+
+/**
+ * Carries requests and partition state between the nodes of a cluster
+ * of {@link PartitionedRateLimiter}s. Everything it carries is plain values,
+ * so it can be implemented over a network as well as in a single process:
+ * the receiving side passes the values to the public methods of its node.
+ */
+public interface ClusterTransport {
+
+  /**
+   * Asks a node to decide on a batch of requests from the partitions it owns.
+   * The node is expected to pass them to {@link PartitionedRateLimiter#decide(String[])}.
+   *
+   * @param nodeId  The ID of the node to ask.
+   * @param userIds The IDs of the users making the requests.
+   * @return the decision on each request, by request.
+   */
+  ForwardedDecision[] forward(String nodeId, String[] userIds);
+
+  /**
+   * Asks a node to decide on a batch of requests from numeric keys of the
+   * partitions it owns. The node is expected to pass them to
+   * {@link PartitionedRateLimiter#decide(long[])}.
+   *
+   * @param nodeId The ID of the node to ask.
+   * @param keys   The numeric keys of the users making the requests.
+   * @return the decision on each request, by request.
+   */
+  ForwardedDecision[] forward(String nodeId, long[] keys);
+
+  /**
+   * Hands the state of a partition over to its new owner. The node is expected
+   * to pass it to {@link PartitionedRateLimiter#acceptHandoff(int, List)}.
+   *
+   * @param nodeId    The ID of the new owner.
+   * @param partition The partition whose ownership changed.
+   * @param snapshots The snapshots of the buckets of the partition's keys.
+   */
+  void handoff(String nodeId, int partition, List<BucketSnapshot> snapshots);
+}
@@ -0,0 +1,151 @@
+package com.rdiachenko.ratelimiting;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread safe limiter of the number of requests a user has in flight at the same
+ * time, also known as a bulkhead. Unlike rate limiters it protects slow downstream
+ * services: at 100 requests per second and 10 seconds of latency, a rate limit alone
+ * still lets 1000 requests pile up.
+ *
+ * <p>Every acquired permit must be released once the request completes. That is why
+ * this is not a {@link RateLimiter}: code written against rate limiters never releases
+ * what they allow, and would lock users out after their first requests. Waiting for a
+ * permit parks the thread instead of blocking it in a monitor, so virtual threads
+ * waiting for a permit do not pin their carrier threads.
+ */
+public class ConcurrencyLimiter {
+
+  private final int maxConcurrency;
+  private final Map<String, InFlight> userInFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs a ConcurrencyLimiter.
+   *
+   * @param maxConcurrency The maximum number of requests a user can have in flight.
+   */
+  public ConcurrencyLimiter(int maxConcurrency) {
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * Acquires a permit for a request from the specified user ID if one is available.
+   *
+   * @param userId The ID of the user making the request.
+   * @return true if a permit was acquired, false otherwise.
+   */
+  public boolean tryAcquire(String userId) {
+    return inFlight(userId).tryAcquire();
+  }
+
+  /**
+   * Acquires a permit for a request from the specified user ID if one is available,
+   * and describes the number of permits left in the given decision. The times are
+   * always 0, because permits are returned by requests completing, not by time passing.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if a permit was acquired, false otherwise.
+   */
+  public boolean tryAcquire(String userId, RateLimitDecision decision) {
+    InFlight inFlight = inFlight(userId);
+    boolean acquired = inFlight.tryAcquire();
+    if (decision != null) {
+      decision.setNanos(acquired, inFlight.permits.availablePermits(), 0, 0);
+    }
+    return acquired;
+  }
+
+  /**
+   * Acquires a permit for a request from the specified user ID,
+   * waiting up to the given timeout for one to be released.
+   *
+   * @param userId  The ID of the user making the request.
+   * @param timeout The maximum time to wait for a permit.
+   * @return true if a permit was acquired, false if the timeout elapsed.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public boolean tryAcquire(String userId, Duration timeout) throws InterruptedException {
+    InFlight inFlight = inFlight(userId);
+    if (!inFlight.permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+      return false;
+    }
+    inFlight.count.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Acquires a permit for a request from the specified user ID if one is available
+   * and the request is also allowed by the given rate limiter. The permit is checked
+   * first, so requests rejected for their concurrency do not use up the rate limit,
+   * and it is released again if the rate limiter rejects the request.
+   *
+   * @param userId      The ID of the user making the request.
+   * @param rateLimiter The rate limiter which must allow the request as well.
+   * @return true if a permit was acquired, false otherwise.
+   */
+  public boolean tryAcquire(String userId, RateLimiter rateLimiter) {
+    if (!tryAcquire(userId)) {
+      return false;
+    }
+    if (rateLimiter.allowed(userId)) {
+      return true;
+    }
+    release(userId);
+    return false;
+  }
+
+  /**
+   * Releases a permit acquired for a completed request from the specified user ID.
+   *
+   * @param userId The ID of the user whose request completed.
+   * @throws IllegalStateException if the user has no requests in flight.
+   */
+  public void release(String userId) {
+    InFlight inFlight = userInFlight.get(userId);
+    if (inFlight == null || !inFlight.release()) {
+      throw new IllegalStateException("No requests in flight for user: " + userId);
+    }
+  }
+
+  private InFlight inFlight(String userId) {
+    return userInFlight.computeIfAbsent(userId, k -> new InFlight(maxConcurrency));
+  }
+
+  /**
+   * The requests of a user in flight. The semaphore lets requests wait for a permit,
+   * and the count, which never goes below zero, makes sure that a release matches
+   * an acquisition, so that concurrent releases cannot raise the limit.
+   */
+  private static final class InFlight {
+    final Semaphore permits;
+    final AtomicInteger count = new AtomicInteger();
+
+    InFlight(int maxConcurrency) {
+      this.permits = new Semaphore(maxConcurrency);
+    }
+
+    boolean tryAcquire() {
+      if (!permits.tryAcquire()) {
+        return false;
+      }
+      count.incrementAndGet();
+      return true;
+    }
+
+    boolean release() {
+      for (int current = count.get(); current > 0; current = count.get()) {
+        if (count.compareAndSet(current, current - 1)) {
+          permits.release();
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
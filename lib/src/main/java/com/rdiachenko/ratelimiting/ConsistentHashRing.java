@@ -0,0 +1,73 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable consistent-hash ring of nodes. Every node is placed on the ring at
+ * several points, its virtual nodes, so that the hash space is split evenly, and a
+ * hash is owned by the first node at or after it. When a node joins or leaves, only
+ * the hashes between its points and their predecessors change owners.
+ */
+final class ConsistentHashRing {
+
+  private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+  /**
+   * Constructs a ConsistentHashRing.
+   *
+   * @param nodeIds      The IDs of the nodes on the ring.
+   * @param virtualNodes The number of points each node is placed at.
+   */
+  ConsistentHashRing(Collection<String> nodeIds, int virtualNodes) {
+    for (String nodeId : nodeIds) {
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.put(hash(nodeId + "#" + i), nodeId);
+      }
+    }
+  }
+
+  /**
+   * Returns the node owning the given hash.
+   *
+   * @param hash The hash to find the owner of.
+   * @return the ID of the owner node, or null if the ring is empty.
+   */
+  String owner(long hash) {
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> entry = ring.ceilingEntry(hash);
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * Hashes a string into 64 bits with FNV-1a, spread by a finalizer so that
+   * similar strings, such as the virtual nodes of one node, land far apart.
+   *
+   * @param value The string to hash.
+   * @return the hash.
+   */
+  static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * Spreads the bits of a value with the finalizer of MurmurHash3.
+   *
+   * @param value The value to spread.
+   * @return the spread value.
+   */
+  static long mix(long value) {
+    value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+    value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return value ^ (value >>> 33);
+  }
+}
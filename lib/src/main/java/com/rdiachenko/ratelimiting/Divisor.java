@@ -0,0 +1,55 @@
+package com.rdiachenko.ratelimiting;
+
+/**
+ * Divides by a divisor fixed up front, without a hardware division on the hot path.
+ *
+ * <p>A power of two is divided by with a shift. Any other divisor is
+ * divided by with its precomputed reciprocal: the high half of the product of the
+ * dividend and {@code floor((2^64 - 1) / divisor)} is the quotient or one less,
+ * which a single comparison corrects. Quotients are the same as those of
+ * {@code /}, including for negative dividends.
+ */
+final class Divisor {
+
+  private final long divisor;
+  private final int shift; // Shift for a power of two divisor, -1 otherwise.
+  private final long reciprocal; // floor((2^64 - 1) / divisor) for other divisors.
+
+  /**
+   * Constructs a Divisor.
+   *
+   * @param divisor The divisor, which must be positive.
+   */
+  Divisor(long divisor) {
+    if (divisor <= 0) {
+      throw new IllegalArgumentException("Divisor must be positive: " + divisor);
+    }
+    this.divisor = divisor;
+    boolean powerOfTwo = Long.bitCount(divisor) == 1;
+    this.shift = powerOfTwo ? Long.numberOfTrailingZeros(divisor) : -1;
+    // A divisor of at least 3 keeps the reciprocal below 2^63.
+    this.reciprocal = powerOfTwo ? 0 : Long.divideUnsigned(-1L, divisor);
+  }
+
+  /**
+   * Divides the given dividend, rounding towards zero.
+   *
+   * @param dividend The dividend, greater than Long.MIN_VALUE.
+   * @return the quotient.
+   * @throws IllegalArgumentException if the dividend is Long.MIN_VALUE, which has no
+   *                                  positive counterpart to divide instead.
+   */
+  long quotient(long dividend) {
+    if (dividend < 0) {
+      if (dividend == Long.MIN_VALUE) {
+        throw new IllegalArgumentException("Dividend must be greater than Long.MIN_VALUE");
+      }
+      return -quotient(-dividend);
+    }
+    if (shift >= 0) {
+      return dividend >>> shift;
+    }
+    long quotient = Math.multiplyHigh(dividend, reciprocal);
+    return dividend - quotient * divisor >= divisor ? quotient + 1 : quotient;
+  }
+}
@@ -0,0 +1,150 @@
+package com.rdiachenko.ratelimiting;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A rate limiter which remembers the keys another limiter rejected, and until when,
+ * so that further requests of clients far over their limit are rejected without
+ * a map lookup or a state update in the limiter.
+ *
+ * <p>A rejected key is remembered until the earliest time it could be allowed again,
+ * which is the retry time the limiter computes from its refill, leak or window math,
+ * see {@link RateLimitDecision#retryAfterNanos()}. Keys are kept in a small lock-free
+ * open-addressing array indexed by their hash, so a cached rejection costs an array
+ * read and a clock read. The array is a cache: when the few slots a key can take are
+ * occupied by keys which are still denied, the key overwrites one of them, and the
+ * overwritten key simply goes back to the limiter.
+ *
+ * <p>The limiter must use the same clock as this one. Limiters which do not report
+ * a retry time are never short-circuited.
+ */
+public class FastRejectRateLimiter implements RateLimiter {
+
+  // The number of slots a key can take, starting from its home slot.
+  private static final int PROBES = 4;
+
+  private final RateLimiter limiter;
+  private final Clock clock;
+  private final AtomicReferenceArray<Denial> denials;
+  private final int mask;
+  private final ThreadLocal<RateLimitDecision> decisions
+      = ThreadLocal.withInitial(RateLimitDecision::new);
+
+  /**
+   * Constructs a FastRejectRateLimiter.
+   *
+   * @param limiter The rate limiter whose rejections to remember.
+   * @param clock   The clock the rate limiter uses.
+   * @param size    The number of keys to remember at most, rounded up to a power of two.
+   */
+  public FastRejectRateLimiter(RateLimiter limiter, Clock clock, int size) {
+    this.limiter = limiter;
+    this.clock = clock;
+    int capacity = Integer.highestOneBit(Math.max(PROBES, size) - 1) << 1;
+    this.denials = new AtomicReferenceArray<>(capacity);
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Determines if a request from the specified user ID is allowed, rejecting it
+   * right away if the user is known to be denied.
+   *
+   * @param userId The ID of the user making the request.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines if a request from the specified user ID is allowed, rejecting it
+   * right away if the user is known to be denied, and describes the decision.
+   * A cached rejection reports no remaining requests, and the retry and reset
+   * times of the rejection it was cached from.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
+    return allowed(userId, 0, spread(userId.hashCode()), decision);
+  }
+
+  /**
+   * Determines if a request from the specified numeric key is allowed, rejecting it
+   * right away if the key is known to be denied, and describes the decision.
+   * Numeric keys are remembered apart from string user IDs.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    return allowed(null, key, spread(Long.hashCode(key)), decision);
+  }
+
+  /**
+   * Decides on a request from a user ID, or from a numeric key if the user ID is null.
+   */
+  private boolean allowed(String userId, long key, int hash, RateLimitDecision decision) {
+    long now = TimeUnit.MILLISECONDS.toNanos(clock.millis());
+
+    for (int i = 0; i < PROBES; i++) {
+      Denial denial = denials.get((hash + i) & mask);
+      if (denial != null && denial.deniedUntil() > now && denial.matches(userId, key)) {
+        if (decision != null) {
+          decision.setNanos(false, 0,
+              denial.deniedUntil() - now, Math.max(0, denial.resetAt() - now));
+        }
+        return false;
+      }
+    }
+
+    RateLimitDecision details = decision != null ? decision : decisions.get();
+    boolean allowed = userId != null
+        ? limiter.allowed(userId, details)
+        : limiter.allowed(key, details);
+    if (!allowed && details.retryAfterNanos() > 0) {
+      deny(hash, now, new Denial(userId, key,
+          now + details.retryAfterNanos(), now + details.resetNanos()));
+    }
+    return allowed;
+  }
+
+  /**
+   * Remembers a rejected key in the first of its slots which is free, expired or
+   * holds the same key, or in its home slot if all of them hold denied keys.
+   */
+  private void deny(int hash, long now, Denial denial) {
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (hash + i) & mask;
+      Denial current = denials.get(slot);
+      if (current == null || current.deniedUntil() <= now
+          || current.matches(denial.userId(), denial.key())) {
+        denials.set(slot, denial);
+        return;
+      }
+    }
+    denials.set(hash & mask, denial);
+  }
+
+  private static int spread(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * A user ID, or a numeric key if the user ID is null,
+   * rejected until the given time in nanoseconds.
+   */
+  private record Denial(String userId, long key, long deniedUntil, long resetAt) {
+    boolean matches(String userId, long key) {
+      return userId != null ? userId.equals(this.userId) : this.userId == null && this.key == key;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.rdiachenko.ratelimiting;
+
+import java.math.BigInteger;
+import java.time.Duration;
+
+/**
+ * A rate of events per nanosecond, kept as an exact fraction.
+ *
+ * <p>Events accrue continuously, so after some time has elapsed there is usually a
+ * fraction of an event left over. The caller keeps that fraction as a carry, measured
+ * in units of {@code 1 / nanos} of an event, and passes it to the next accrual. This way
+ * high rates like millions of events per second are enforced exactly in the long run,
+ * without rounding drift and without floating point.
+ *
+ * <p>The fraction is reduced on construction, and divisions by the reduced period use a
+ * precomputed {@link Divisor}. Intermediate products are bounded by
+ * {@code events * nanos}, and when even that does not fit into a long, which needs a
+ * period of several seconds with billions of events, the slow path uses BigInteger.
+ */
+final class FixedPointRate {
+
+  private final long events; // Events per the reduced period.
+  private final long nanos; // Nanoseconds of the reduced period.
+  private final boolean compact; // Whether nanos * (events + 1) fits into a long.
+  private final Divisor nanosDivisor;
+
+  /**
+   * Constructs a FixedPointRate.
+   *
+   * @param eventsPerPeriod The number of events per period.
+   * @param period          The period, at least one nanosecond long.
+   * @throws IllegalArgumentException if the number of events per period is not positive.
+   */
+  FixedPointRate(long eventsPerPeriod, Duration period) {
+    if (eventsPerPeriod <= 0) {
+      throw new IllegalArgumentException("Events per period must be positive: " + eventsPerPeriod);
+    }
+    long periodNanos = period.toNanos();
+    long gcd = BigInteger.valueOf(eventsPerPeriod).gcd(BigInteger.valueOf(periodNanos)).longValue();
+    this.events = eventsPerPeriod / gcd;
+    this.nanos = periodNanos / gcd;
+    this.compact = Math.multiplyHigh(nanos, events + 1) == 0 && nanos * (events + 1) >= 0;
+    this.nanosDivisor = new Divisor(nanos);
+  }
+
+  /**
+   * Returns whether the arithmetic fits into a long, so that no accrual takes the slow path.
+   *
+   * @return true if the rate is computed with longs only.
+   */
+  boolean compact() {
+    return compact;
+  }
+
+  /**
+   * Calculates the number of whole events accrued over the elapsed time.
+   * Saturates at Long.MAX_VALUE.
+   *
+   * @param elapsedNanos The elapsed time in nanoseconds.
+   * @param carry        The fraction of an event carried over from before.
+   * @return the number of whole events.
+   */
+  long accrued(long elapsedNanos, long carry) {
+    long periods = nanosDivisor.quotient(elapsedNanos);
+    if (periods > (Long.MAX_VALUE - events) / events) {
+      return Long.MAX_VALUE;
+    }
+    return periods * events + fraction(elapsedNanos - periods * nanos, carry, true);
+  }
+
+  /**
+   * Calculates the fraction of an event left over after accruing events
+   * over the elapsed time.
+   *
+   * @param elapsedNanos The elapsed time in nanoseconds.
+   * @param carry        The fraction of an event carried over from before.
+   * @return the fraction of an event to carry over.
+   */
+  long carry(long elapsedNanos, long carry) {
+    return fraction(elapsedNanos - nanosDivisor.quotient(elapsedNanos) * nanos, carry, false);
+  }
+
+  /**
+   * Calculates the time needed to accrue the given number of events.
+   * Saturates at Long.MAX_VALUE.
+   *
+   * @param count The number of events to accrue.
+   * @param carry The fraction of an event carried over from before.
+   * @return the time in nanoseconds.
+   */
+  long nanosUntil(long count, long carry) {
+    if (count <= 0) {
+      return 0;
+    }
+    // count * nanos - carry, split by whole reduced periods to stay within bounds.
+    long periods = count / events;
+    if (periods > Long.MAX_VALUE / nanos - 1) {
+      return Long.MAX_VALUE;
+    }
+    long rest = count % events;
+    if (compact) {
+      return periods * nanos + Math.ceilDiv(rest * nanos - carry, events);
+    }
+    BigInteger[] division = BigInteger.valueOf(rest).multiply(BigInteger.valueOf(nanos))
+        .subtract(BigInteger.valueOf(carry))
+        .divideAndRemainder(BigInteger.valueOf(events));
+    return periods * nanos + division[0].longValue() + (division[1].signum() > 0 ? 1 : 0);
+  }
+
+  /**
+   * Divides {@code elapsedNanos * events + carry} by {@code nanos}, where
+   * the elapsed time is shorter than the reduced period.
+   *
+   * @param elapsedNanos The elapsed time within a reduced period.
+   * @param carry        The fraction of an event carried over from before.
+   * @param quotient     Whether to return the quotient or the remainder.
+   * @return the whole events or the fraction of an event left over.
+   */
+  private long fraction(long elapsedNanos, long carry, boolean quotient) {
+    if (compact) {
+      long units = elapsedNanos * events + carry;
+      long whole = nanosDivisor.quotient(units);
+      return quotient ? whole : units - whole * nanos;
+    }
+    BigInteger[] division = BigInteger.valueOf(elapsedNanos)
+        .multiply(BigInteger.valueOf(events))
+        .add(BigInteger.valueOf(carry))
+        .divideAndRemainder(BigInteger.valueOf(nanos));
+    return division[quotient ? 0 : 1].longValue();
+  }
+}
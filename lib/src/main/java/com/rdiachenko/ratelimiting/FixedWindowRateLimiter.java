@@ -5,12 +5,13 @@ import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
-public class FixedWindowRateLimiter {
+public class FixedWindowRateLimiter implements RateLimiter {
 
   private final int maxCount;
   private final Duration windowDuration;
   private final Clock clock;
   private final Map<String, FixedWindow> userFixedWindow = new HashMap<>();
+  private final LongKeyMap<FixedWindow> keyFixedWindow = new LongKeyMap<>();
 
   /**
    * Constructs a FixedWindowRateLimiter with the specified
@@ -22,7 +23,7 @@ public class FixedWindowRateLimiter {
    *                       the request count is valid.
    * @param clock          The clock instance to use for timing.
    */
-  FixedWindowRateLimiter(int maxCount, Duration windowDuration, Clock clock) {
+  public FixedWindowRateLimiter(int maxCount, Duration windowDuration, Clock clock) {
     this.maxCount = maxCount;
     this.windowDuration = windowDuration;
     this.clock = clock;
@@ -35,33 +36,77 @@ public class FixedWindowRateLimiter {
    * @param userId The ID of the user making the request.
    * @return true if the request is allowed, false otherwise.
    */
-  boolean allowed(String userId) {
+  @Override
+  public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines whether a request from the specified user ID
+   * is allowed based on their activity in the current window,
+   * and describes the state of the window in the given decision.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
     long now = clock.millis();
-    FixedWindow fixedWindow = userFixedWindow.get(userId);
+    // Initialize a new fixed window for new users or retrieve existing one.
+    return allowed(userFixedWindow.computeIfAbsent(userId, k -> new FixedWindow(now)),
+        now, decision);
+  }
 
-    // Initialize a new fixed window for new users or
-    // when the current window has expired.
-    if (fixedWindow == null
-        || fixedWindow.timestamp() + windowDuration.toMillis() < now) {
-      fixedWindow = new FixedWindow(now, 0);
+  /**
+   * Determines whether a request from the specified numeric key
+   * is allowed based on its activity in the current window,
+   * and describes the state of the window in the given decision.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    long now = clock.millis();
+    return allowed(keyFixedWindow.computeIfAbsent(key, k -> new FixedWindow(now)),
+        now, decision);
+  }
+
+  private boolean allowed(FixedWindow fixedWindow, long now, RateLimitDecision decision) {
+    // Start a new fixed window when the current window has expired.
+    if (fixedWindow.timestamp + windowDuration.toMillis() < now) {
+      fixedWindow.timestamp = now;
+      fixedWindow.count = 0;
     }
 
     // Disallow the request if the number of requests
     // in the current window exceeds the limit.
-    if (fixedWindow.count() >= maxCount) {
-      return false;
-    } else {
-      // Increment the request count and update the window for the user.
-      userFixedWindow.put(userId,
-          new FixedWindow(fixedWindow.timestamp(), fixedWindow.count() + 1));
-      return true;
+    boolean allowed = fixedWindow.count < maxCount;
+    if (allowed) {
+      // Increment the request count of the window.
+      ++fixedWindow.count;
     }
+
+    if (decision != null) {
+      // A new window starts right after the current one expires.
+      long windowReset = fixedWindow.timestamp + windowDuration.toMillis() + 1 - now;
+      decision.set(allowed, maxCount - fixedWindow.count,
+          allowed ? 0 : windowReset, windowReset);
+    }
+    return allowed;
   }
 
   /**
-   * A record representing a fixed window with a start timestamp
-   * and a request count.
+   * A fixed window with a start timestamp and a request count.
    */
-  private record FixedWindow(long timestamp, int count) {
+  private static class FixedWindow {
+    private long timestamp;
+    private int count;
+
+    FixedWindow(long timestamp) {
+      this.timestamp = timestamp;
+    }
   }
 }
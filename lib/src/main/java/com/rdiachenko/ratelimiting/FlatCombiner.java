@@ -0,0 +1,218 @@
+package com.rdiachenko.ratelimiting;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes updates of a single bucket state between threads.
+ *
+ * <p>Uncontended requests simply take a lock, read the clock and apply themselves.
+ * Once a bucket shows contention, flat combining is switched on for it: threads
+ * publish their requests into a small array of slots, and whichever thread holds
+ * the lock becomes the combiner. The combiner reads the clock once and applies
+ * every published request in one pass, while the other threads only wait for
+ * their slot to flip to done. This replaces many failing lock or CAS attempts,
+ * each moving the state's cache line between cores, with a single owner of the state.
+ *
+ * <p>Contended lock acquisitions count towards switching combining on, and
+ * uncontended ones count against it, so a bucket which sees occasional collisions
+ * among mostly uncontended requests does not allocate the slots.
+ */
+abstract class FlatCombiner {
+
+  // The number of contended lock acquisitions, in excess of the uncontended ones,
+  // after which combining is switched on.
+  static final int CONTENTION_THRESHOLD = 16;
+  // The number of spins after which a waiting thread starts yielding.
+  private static final int SPINS_BEFORE_YIELD = 64;
+  private static final int SLOTS = Integer.highestOneBit(
+      Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+  // Slot states.
+  private static final int FREE = 0;
+  private static final int CLAIMED = 1;
+  private static final int PENDING = 2;
+  private static final int DONE = 3;
+
+  private final Clock clock;
+  private final ReentrantLock lock = new ReentrantLock();
+  private int contentions; // Contended minus uncontended acquisitions, guarded by the lock.
+  private volatile Slots slots; // Created once contention is detected.
+
+  /**
+   * Constructs a FlatCombiner.
+   *
+   * @param clock The clock read once per combining pass.
+   */
+  FlatCombiner(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Applies a request to the state while holding exclusive access to it.
+   *
+   * @param now      The current time in nanoseconds, shared by all requests of one pass.
+   * @param argument The argument of the request, such as its priority class.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return the number of permits granted to the request, 0 if it is rejected.
+   */
+  abstract long apply(long now, long argument, RateLimitDecision decision);
+
+  /**
+   * Applies a request without an argument to the state,
+   * either directly or through a combiner.
+   *
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return the number of permits granted to the request, 0 if it is rejected.
+   */
+  final long submit(RateLimitDecision decision) {
+    return submit(0, decision);
+  }
+
+  /**
+   * Applies a request to the state, either directly or through a combiner.
+   *
+   * @param argument The argument of the request, such as its priority class.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return the number of permits granted to the request, 0 if it is rejected.
+   */
+  final long submit(long argument, RateLimitDecision decision) {
+    Slots published = slots;
+
+    if (published == null) {
+      if (lock.tryLock()) {
+        try {
+          if (contentions > 0) {
+            contentions--;
+          }
+          return apply(now(), argument, decision);
+        } finally {
+          lock.unlock();
+        }
+      }
+      return applyContended(argument, decision);
+    }
+
+    // Publish the request into the slot of the current thread. If another
+    // thread occupies the slot, fall back to waiting for the lock.
+    int slot = (int) (Thread.currentThread().threadId() & (SLOTS - 1));
+    if (!published.states.compareAndSet(slot, FREE, CLAIMED)) {
+      return applyContended(argument, decision);
+    }
+    published.arguments[slot] = argument;
+    published.decisions[slot] = decision;
+    published.states.set(slot, PENDING);
+
+    for (int spins = 0; ; spins++) {
+      int state = published.states.get(slot);
+      if (state == DONE) {
+        long result = published.results[slot];
+        published.decisions[slot] = null;
+        published.states.set(slot, FREE);
+        return result;
+      }
+      if (lock.tryLock()) {
+        try {
+          combine(published, now());
+        } finally {
+          lock.unlock();
+        }
+      } else if (spins < SPINS_BEFORE_YIELD) {
+        Thread.onSpinWait();
+      } else {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Runs an action with exclusive access to the state, outside of the request path,
+   * such as exporting or importing the state.
+   *
+   * @param action The action to run.
+   */
+  final void exclusively(Runnable action) {
+    lock.lock();
+    try {
+      action.run();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Checks if combining is switched on.
+   *
+   * @return true if requests are combined, false otherwise.
+   */
+  boolean combining() {
+    return slots != null;
+  }
+
+  /**
+   * Applies a request after blocking on the lock, counts the contention and
+   * switches combining on once the bucket turns out to be hot.
+   *
+   * @param argument The argument of the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return the number of permits granted to the request, 0 if it is rejected.
+   */
+  private long applyContended(long argument, RateLimitDecision decision) {
+    lock.lock();
+    try {
+      long now = now();
+      Slots published = slots;
+      if (published == null) {
+        if (++contentions >= CONTENTION_THRESHOLD) {
+          slots = new Slots();
+        }
+      } else {
+        combine(published, now);
+      }
+      return apply(now, argument, decision);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Applies all published requests with the same timestamp.
+   * Must be called while holding the lock.
+   *
+   * @param published The publication slots.
+   * @param now       The current time in nanoseconds.
+   */
+  private void combine(Slots published, long now) {
+    for (int i = 0; i < SLOTS; i++) {
+      if (published.states.get(i) == PENDING) {
+        published.results[i] = apply(now, published.arguments[i], published.decisions[i]);
+        published.states.set(i, DONE);
+      }
+    }
+  }
+
+  /**
+   * Reads the clock.
+   *
+   * @return the current time in nanoseconds.
+   */
+  private long now() {
+    return TimeUnit.MILLISECONDS.toNanos(clock.millis());
+  }
+
+  /**
+   * Publication slots of waiting requests. An argument and a decision are written
+   * by their owner before the slot becomes pending, and read by the combiner after
+   * it sees the pending state. A result is written by the combiner before the slot
+   * becomes done, and read by its owner after it sees the done state. The volatile
+   * state accesses make them safe to share.
+   */
+  private static final class Slots {
+    final AtomicIntegerArray states = new AtomicIntegerArray(SLOTS);
+    final long[] arguments = new long[SLOTS];
+    final long[] results = new long[SLOTS];
+    final RateLimitDecision[] decisions = new RateLimitDecision[SLOTS];
+  }
+}
@@ -0,0 +1,39 @@
+package com.rdiachenko.ratelimiting;
+
+import java.io.Serializable;
+
+/**
+ * The outcome of a request decided by the owner of its partition in a cluster of
+ * {@link PartitionedRateLimiter}s, as sent back through a {@link ClusterTransport}.
+ * Decisions are plain serializable values, so that they can be sent back from
+ * another process, like {@link BucketSnapshot}s.
+ *
+ * @param allowed         Whether the request was allowed.
+ * @param remaining       The number of requests which can still be made right now.
+ * @param retryAfterNanos The time to wait until the next request can be allowed.
+ * @param resetNanos      The time until the limit is fully replenished.
+ * @see RateLimitDecision
+ */
+public record ForwardedDecision(boolean allowed, long remaining, long retryAfterNanos,
+                                long resetNanos) implements Serializable {
+
+  /**
+   * Copies the details of a decision.
+   *
+   * @param decision The decision to copy.
+   * @return the forwarded decision.
+   */
+  static ForwardedDecision of(RateLimitDecision decision) {
+    return new ForwardedDecision(decision.allowed(), decision.remaining(),
+        decision.retryAfterNanos(), decision.resetNanos());
+  }
+
+  /**
+   * Writes the details of this decision into a holder of the requesting node.
+   *
+   * @param decision The holder to write the details into.
+   */
+  void copyTo(RateLimitDecision decision) {
+    decision.setNanos(allowed, remaining, retryAfterNanos, resetNanos);
+  }
+}
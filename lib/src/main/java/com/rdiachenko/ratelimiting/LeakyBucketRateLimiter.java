@@ -2,16 +2,34 @@ package com.rdiachenko.ratelimiting;
 
 import java.time.Clock;
 import java.time.Duration;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-public class LeakyBucketRateLimiter {
+/**
+ * A thread safe leaky bucket rate limiter. Requests for the same user are
+ * serialized on the user's bucket, and buckets of users which receive many
+ * concurrent requests switch to flat combining, see {@link FlatCombiner}.
+ *
+ * <p>Leaks are accounted for with nanosecond resolution, and the fraction of
+ * a period elapsed since the last leak is kept, so that high rates and
+ * sub-millisecond periods are enforced without drift.
+ *
+ * <p>The buckets of users can be exported as snapshots and restored into another
+ * limiter, see {@link TransferableRateLimiter}.
+ */
+public class LeakyBucketRateLimiter implements TransferableRateLimiter {
 
   private final int capacity;
   private final Duration period;
   private final int leaksPerPeriod;
   private final Clock clock;
-  private final Map<String, LeakyBucket> userLeakyBucket = new HashMap<>();
+  private final long periodNanos;
+  private final Divisor periodDivisor;
+  private final Map<String, LeakyBucket> userLeakyBucket = new ConcurrentHashMap<>();
+  private final LongKeyMap<LeakyBucket> keyLeakyBucket = new LongKeyMap<>();
 
   /**
    * Constructs a leaky bucket rate limiter.
@@ -20,12 +38,18 @@ public class LeakyBucketRateLimiter {
    * @param period         The time frame in which requests are considered for limiting.
    * @param leaksPerPeriod The number of requests that are allowed to leak out (processed) per period.
    * @param clock          The clock used to determine the current time, facilitating testing with fixed clocks.
+   * @throws IllegalArgumentException if the number of leaks per period is not positive.
    */
   public LeakyBucketRateLimiter(int capacity, Duration period, int leaksPerPeriod, Clock clock) {
+    if (leaksPerPeriod <= 0) {
+      throw new IllegalArgumentException("Leaks per period must be positive: " + leaksPerPeriod);
+    }
     this.capacity = capacity;
     this.period = period;
     this.leaksPerPeriod = leaksPerPeriod;
     this.clock = clock;
+    this.periodNanos = period.toNanos();
+    this.periodDivisor = new Divisor(periodNanos);
   }
 
   /**
@@ -34,43 +58,166 @@ public class LeakyBucketRateLimiter {
    * @param userId The user ID making the request.
    * @return true if the request is allowed, false otherwise.
    */
+  @Override
   public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines if a request by a given user ID is allowed under the current rate limiting rules,
+   * and describes the state of the bucket in the given decision.
+   *
+   * @param userId   The user ID making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
     LeakyBucket bucket = userLeakyBucket.computeIfAbsent(userId,
-        k -> new LeakyBucket(clock.millis(), 0));
+        k -> new LeakyBucket(TimeUnit.MILLISECONDS.toNanos(clock.millis()), 0));
+
+    return bucket.submit(decision) > 0;
+  }
+
+  /**
+   * Determines if a request by a given numeric key is allowed under the current rate limiting rules,
+   * and describes the state of the bucket in the given decision.
+   *
+   * @param key      The numeric key making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    LeakyBucket bucket = keyLeakyBucket.computeIfAbsent(key,
+        k -> new LeakyBucket(TimeUnit.MILLISECONDS.toNanos(clock.millis()), 0));
 
-    bucket.leak();
+    return bucket.submit(decision) > 0;
+  }
 
-    return bucket.processed();
+  /**
+   * Exports the state of the leaky buckets of all users and numeric keys.
+   *
+   * @return a snapshot per user or key.
+   */
+  @Override
+  public List<BucketSnapshot> snapshots() {
+    List<BucketSnapshot> snapshots = new ArrayList<>();
+    userLeakyBucket.forEach((userId, bucket) -> bucket.exclusively(
+        () -> snapshots.add(bucket.snapshot(userId, 0))));
+    keyLeakyBucket.forEach((key, bucket) -> bucket.exclusively(
+        () -> snapshots.add(bucket.snapshot(null, key))));
+    return snapshots;
   }
 
-  private class LeakyBucket {
-    private long leakTimestamp; // Timestamp of the last leak.
+  /**
+   * Imports the state of the leaky bucket of a user or a numeric key, keeping the
+   * fuller bucket if there already is one. A snapshot taken later than the current
+   * time of this limiter's clock is treated as taken now.
+   *
+   * @param snapshot The snapshot to import.
+   */
+  @Override
+  public void restore(BucketSnapshot snapshot) {
+    long now = TimeUnit.MILLISECONDS.toNanos(clock.millis());
+    LeakyBucket restored = new LeakyBucket(Math.min(snapshot.timestamp(), now), snapshot.level());
+
+    LeakyBucket bucket = snapshot.userId() != null
+        ? userLeakyBucket.computeIfAbsent(snapshot.userId(), k -> restored)
+        : keyLeakyBucket.computeIfAbsent(snapshot.key(), k -> restored);
+    if (bucket != restored) {
+      bucket.exclusively(() -> bucket.merge(restored));
+    }
+  }
+
+  private class LeakyBucket extends FlatCombiner {
+    private long leakTimestamp; // Timestamp of the last leak in nanoseconds.
     private long waterLevel; // Current water level represents the number of pending requests.
 
     /**
      * Constructs a leaky bucket instance.
      *
-     * @param leakTimestamp The initial timestamp of the last leak.
+     * @param leakTimestamp The initial timestamp of the last leak in nanoseconds.
      * @param waterLevel    The initial water level of the bucket.
      */
     LeakyBucket(long leakTimestamp, long waterLevel) {
+      super(clock);
       this.leakTimestamp = leakTimestamp;
       this.waterLevel = waterLevel;
     }
 
+    @Override
+    long apply(long now, long argument, RateLimitDecision decision) {
+      leak(now);
+
+      boolean allowed = processed();
+
+      if (decision != null) {
+        long resetAt = leakedAt(waterLevel);
+        decision.setNanos(allowed, capacity - waterLevel,
+            allowed ? 0 : leakedAt(1) - now, resetAt - now);
+        long batch = Math.min(decision.batch(), capacity);
+        decision.setBatchRetryAfterNanos(
+            Math.min(leakedAt(waterLevel + batch - capacity), resetAt) - now);
+      }
+      return allowed ? 1 : 0;
+    }
+
+    /**
+     * Exports the state of the bucket. Must be called with exclusive access to it.
+     *
+     * @param userId The ID of the user the bucket belongs to, or null.
+     * @param key    The numeric key the bucket belongs to, if the user ID is null.
+     * @return the snapshot.
+     */
+    BucketSnapshot snapshot(String userId, long key) {
+      return new BucketSnapshot(userId, key, waterLevel, 0, leakTimestamp);
+    }
+
+    /**
+     * Merges the state of another bucket of the same user into this one. Both leak
+     * up to the later of their timestamps, and the one with the higher water level wins.
+     *
+     * @param other The bucket to merge, which is not shared with other threads.
+     */
+    void merge(LeakyBucket other) {
+      long timestamp = Math.max(leakTimestamp, other.leakTimestamp);
+      leak(timestamp);
+      other.leak(timestamp);
+      if (other.waterLevel > waterLevel) {
+        waterLevel = other.waterLevel;
+        leakTimestamp = other.leakTimestamp;
+      }
+    }
+
+    /**
+     * Calculates the time at which the given number of requests
+     * will have leaked out of the bucket since the last leak.
+     *
+     * @param leaks The number of requests to leak.
+     * @return the time at which the requests are leaked.
+     */
+    private long leakedAt(long leaks) {
+      return leakTimestamp + Math.ceilDiv(leaks, leaksPerPeriod) * periodNanos;
+    }
+
     /**
      * Simulates the leaking of requests over time. This method adjusts the water level
      * based on the elapsed time since the last leak, applying the defined leak rate.
+     * The last leak timestamp only advances by whole periods, so that the time
+     * elapsed within the current period counts towards the next leak.
+     *
+     * @param now The current time in nanoseconds.
      */
-    void leak() {
-      long now = clock.millis();
+    void leak(long now) {
       long elapsedTime = now - leakTimestamp;
-      long elapsedPeriods = elapsedTime / period.toMillis();
-      long leaks = elapsedPeriods * leaksPerPeriod;
+      long elapsedPeriods = periodDivisor.quotient(elapsedTime);
+      // More periods than the capacity would empty the bucket anyway.
+      long leaks = Math.min(elapsedPeriods, capacity) * leaksPerPeriod;
 
       if (leaks > 0) {
         waterLevel = Math.max(0, waterLevel - leaks);
-        leakTimestamp = now;
+        leakTimestamp += elapsedPeriods * periodNanos;
       }
     }
 
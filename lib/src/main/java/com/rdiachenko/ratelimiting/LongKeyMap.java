@@ -0,0 +1,133 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongFunction;
+
+/**
+ * A map from primitive long keys to values, so that numeric keys such as account IDs
+ * or IPv4 addresses are neither boxed nor turned into strings.
+ *
+ * <p>Entries are kept in an open-addressing table with linear probing. Lookups are
+ * lock-free, inserts are serialized, and entries are never removed. A value is
+ * published after its key, so a reader which sees the value also sees the key.
+ * When the table is half full, it is copied into a twice larger one, which then
+ * replaces it; readers still probing the old table miss only the entries inserted
+ * meanwhile, and those are found again under the lock.
+ *
+ * @param <V> The type of values.
+ */
+final class LongKeyMap<V> {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private volatile Table<V> table = new Table<>(INITIAL_CAPACITY);
+  private int size; // Guarded by this.
+
+  /**
+   * Returns the value of the given key.
+   *
+   * @param key The key.
+   * @return the value, or null if the key has none.
+   */
+  V get(long key) {
+    return table.get(key);
+  }
+
+  /**
+   * Returns the value of the given key, computing and inserting it if the key has none.
+   *
+   * @param key      The key.
+   * @param function The function computing the value of the key, which must not return null.
+   * @return the value of the key.
+   */
+  V computeIfAbsent(long key, LongFunction<? extends V> function) {
+    V value = table.get(key);
+    return value != null ? value : insert(key, function);
+  }
+
+  /**
+   * Visits the entries of the map. Entries inserted meanwhile may be missed.
+   *
+   * @param visitor The visitor of the entries.
+   */
+  void forEach(Visitor<? super V> visitor) {
+    Table<V> current = table;
+    for (int i = 0; i < current.keys.length; i++) {
+      V value = current.values.get(i);
+      if (value != null) {
+        visitor.visit(current.keys[i], value);
+      }
+    }
+  }
+
+  private synchronized V insert(long key, LongFunction<? extends V> function) {
+    Table<V> current = table;
+    V value = current.get(key);
+    if (value != null) {
+      return value;
+    }
+
+    value = function.apply(key);
+    if (2 * (size + 1) > current.values.length()) {
+      Table<V> resized = new Table<>(current.values.length() * 2);
+      for (int i = 0; i < current.values.length(); i++) {
+        V existing = current.values.get(i);
+        if (existing != null) {
+          resized.put(current.keys[i], existing);
+        }
+      }
+      current = resized;
+    }
+    current.put(key, value);
+    table = current;
+    size++;
+    return value;
+  }
+
+  /**
+   * A visitor of the entries of a map.
+   *
+   * @param <V> The type of values.
+   */
+  interface Visitor<V> {
+    void visit(long key, V value);
+  }
+
+  /**
+   * A table of keys and values at the same positions.
+   * A slot is taken when its value is set.
+   */
+  private static final class Table<V> {
+    final long[] keys;
+    final AtomicReferenceArray<V> values;
+    final int mask;
+
+    Table(int capacity) {
+      this.keys = new long[capacity];
+      this.values = new AtomicReferenceArray<>(capacity);
+      this.mask = capacity - 1;
+    }
+
+    V get(long key) {
+      for (int i = slot(key); ; i = (i + 1) & mask) {
+        V value = values.get(i);
+        if (value == null || keys[i] == key) {
+          return value;
+        }
+      }
+    }
+
+    void put(long key, V value) {
+      int i = slot(key);
+      while (values.get(i) != null) {
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values.set(i, value);
+    }
+
+    private int slot(long key) {
+      return (int) ConsistentHashRing.mix(key) & mask;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A transport between nodes running in the same process, which calls
+ * the nodes directly. It is meant for tests and simulations of a cluster.
+ */
+public class LoopbackTransport implements ClusterTransport {
+
+  private final Map<String, PartitionedRateLimiter> nodes = new ConcurrentHashMap<>();
+
+  /**
+   * Makes a node reachable through this transport.
+   *
+   * @param node The node to register.
+   */
+  public void register(PartitionedRateLimiter node) {
+    nodes.put(node.nodeId(), node);
+  }
+
+  /**
+   * Makes a node unreachable through this transport.
+   *
+   * @param nodeId The ID of the node to unregister.
+   */
+  public void unregister(String nodeId) {
+    nodes.remove(nodeId);
+  }
+
+  /**
+   * Applies a membership change to all registered nodes,
+   * which hand off the partitions they no longer own.
+   *
+   * @param members The IDs of the nodes which are members of the cluster after the change.
+   */
+  public void updateMembers(Set<String> members) {
+    for (PartitionedRateLimiter node : nodes.values()) {
+      node.updateMembers(members);
+    }
+  }
+
+  @Override
+  public ForwardedDecision[] forward(String nodeId, String[] userIds) {
+    return node(nodeId).decide(userIds);
+  }
+
+  @Override
+  public ForwardedDecision[] forward(String nodeId, long[] keys) {
+    return node(nodeId).decide(keys);
+  }
+
+  @Override
+  public void handoff(String nodeId, int partition, List<BucketSnapshot> snapshots) {
+    node(nodeId).acceptHandoff(partition, snapshots);
+  }
+
+  private PartitionedRateLimiter node(String nodeId) {
+    PartitionedRateLimiter node = nodes.get(nodeId);
+    if (node == null) {
+      throw new IllegalStateException("Unknown node: " + nodeId);
+    }
+    return node;
+  }
+}
@@ -0,0 +1,386 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A node of a rate limiter cluster in which every key is owned by exactly one node.
+ *
+ * <p>Keys are hashed into a fixed number of partitions, and partitions are assigned
+ * to nodes with a {@link ConsistentHashRing}. Each node runs an ordinary single-node
+ * rate limiter per partition it owns, and forwards requests for other keys to their
+ * owners through a {@link ClusterTransport}, one message per owner for a batch.
+ * Single requests are batched too: while a message to an owner is in flight, the
+ * requests for it are queued, and go together in the next message once it returns.
+ *
+ * <p>The receiving side of a transport passes forwarded requests and handoffs to
+ * {@link #decide(String[])}, {@link #decide(long[])} and {@link #acceptHandoff},
+ * which only take and return plain values.
+ *
+ * <p>When the membership changes, a node exports the buckets of the partitions it no
+ * longer owns as {@link BucketSnapshot}s and hands them over to their new owners, so
+ * the keys keep their state. Requests racing with a handoff may still be decided by
+ * the previous owner, or create a bucket at the new owner before the handoff arrives.
+ * The new owner then merges the snapshots into its buckets, keeping the more
+ * restrictive state of each key, see {@link TransferableRateLimiter#restore}.
+ */
+public class PartitionedRateLimiter implements RateLimiter {
+
+  private final String nodeId;
+  private final int partitionCount;
+  private final int virtualNodes;
+  private final Supplier<? extends TransferableRateLimiter> limiterFactory;
+  private final ClusterTransport transport;
+  private final Map<Integer, TransferableRateLimiter> partitions = new ConcurrentHashMap<>();
+  private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+  private volatile ConsistentHashRing ring;
+
+  /**
+   * Constructs a PartitionedRateLimiter.
+   *
+   * @param nodeId         The ID of this node.
+   * @param members        The IDs of the nodes which are members of the cluster.
+   * @param partitionCount The number of partitions keys are hashed into,
+   *                       which must be the same on every node.
+   * @param virtualNodes   The number of points each node is placed at on the ring.
+   * @param limiterFactory The factory of the rate limiter of a partition.
+   * @param transport      The transport to reach other nodes with.
+   */
+  public PartitionedRateLimiter(String nodeId, Set<String> members, int partitionCount,
+                                int virtualNodes,
+                                Supplier<? extends TransferableRateLimiter> limiterFactory,
+                                ClusterTransport transport) {
+    this.nodeId = nodeId;
+    this.partitionCount = partitionCount;
+    this.virtualNodes = virtualNodes;
+    this.limiterFactory = limiterFactory;
+    this.transport = transport;
+    this.ring = new ConsistentHashRing(members, virtualNodes);
+  }
+
+  /**
+   * Returns the ID of this node.
+   *
+   * @return the node ID.
+   */
+  public String nodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Determines if a request from the specified user ID is allowed
+   * by the node owning the user's partition.
+   *
+   * @param userId The ID of the user making the request.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines if a request from the specified user ID is allowed
+   * by the node owning the user's partition, and describes the state
+   * of the user's limit in the given decision.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
+    int partition = partition(userId);
+    String owner = ring.owner(position(partition));
+    if (nodeId.equals(owner)) {
+      return limiter(partition).allowed(userId, decision);
+    }
+    return outbox(owner).send(new Request(userId, 0, decision));
+  }
+
+  /**
+   * Determines if a request from the specified numeric key is allowed
+   * by the node owning the key's partition, and describes the state
+   * of the key's limit in the given decision.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    int partition = partition(key);
+    String owner = ring.owner(position(partition));
+    if (nodeId.equals(owner)) {
+      return limiter(partition).allowed(key, decision);
+    }
+    return outbox(owner).send(new Request(null, key, decision));
+  }
+
+  /**
+   * Determines if each of a batch of requests is allowed by the node owning its
+   * user's partition. The requests are sent to each remote owner in one message.
+   *
+   * @param userIds The IDs of the users making the requests.
+   * @return whether each request is allowed, by request.
+   */
+  public boolean[] allowed(List<String> userIds) {
+    boolean[] allowed = new boolean[userIds.size()];
+    ConsistentHashRing current = ring;
+    Map<String, List<Request>> remote = new HashMap<>();
+    List<Request> requests = new ArrayList<>();
+
+    for (int i = 0; i < allowed.length; i++) {
+      String userId = userIds.get(i);
+      int partition = partition(userId);
+      String owner = current.owner(position(partition));
+      Request request = new Request(userId, 0, null);
+      if (nodeId.equals(owner)) {
+        request.allowed = limiter(partition).allowed(userId);
+      } else {
+        remote.computeIfAbsent(owner, k -> new ArrayList<>()).add(request);
+      }
+      requests.add(request);
+    }
+
+    for (Map.Entry<String, List<Request>> batch : remote.entrySet()) {
+      forward(batch.getKey(), batch.getValue());
+    }
+    for (int i = 0; i < allowed.length; i++) {
+      allowed[i] = requests.get(i).allowed;
+    }
+    return allowed;
+  }
+
+  /**
+   * Decides on a batch of requests forwarded by another node. The requests are
+   * decided here even if this node's view of the ring differs from the sender's,
+   * so that requests never bounce between nodes.
+   *
+   * @param userIds The IDs of the users making the requests.
+   * @return the decision on each request, by request.
+   */
+  public ForwardedDecision[] decide(String[] userIds) {
+    ForwardedDecision[] decisions = new ForwardedDecision[userIds.length];
+    RateLimitDecision decision = new RateLimitDecision();
+    for (int i = 0; i < userIds.length; i++) {
+      limiter(partition(userIds[i])).allowed(userIds[i], decision);
+      decisions[i] = ForwardedDecision.of(decision);
+    }
+    return decisions;
+  }
+
+  /**
+   * Decides on a batch of requests from numeric keys forwarded by another node.
+   *
+   * @param keys The numeric keys of the users making the requests.
+   * @return the decision on each request, by request.
+   * @see #decide(String[])
+   */
+  public ForwardedDecision[] decide(long[] keys) {
+    ForwardedDecision[] decisions = new ForwardedDecision[keys.length];
+    RateLimitDecision decision = new RateLimitDecision();
+    for (int i = 0; i < keys.length; i++) {
+      limiter(partition(keys[i])).allowed(keys[i], decision);
+      decisions[i] = ForwardedDecision.of(decision);
+    }
+    return decisions;
+  }
+
+  /**
+   * Takes over the state of a partition from its previous owner, merging it
+   * with the state this node already has for the partition's keys.
+   *
+   * @param partition The partition to take over.
+   * @param snapshots The snapshots of the buckets of the partition's keys.
+   */
+  public void acceptHandoff(int partition, List<BucketSnapshot> snapshots) {
+    TransferableRateLimiter limiter = limiter(partition);
+    for (BucketSnapshot snapshot : snapshots) {
+      limiter.restore(snapshot);
+    }
+  }
+
+  /**
+   * Applies a membership change, handing the partitions this node
+   * no longer owns over to their new owners.
+   *
+   * @param members The IDs of the nodes which are members of the cluster after the change.
+   */
+  public synchronized void updateMembers(Set<String> members) {
+    ConsistentHashRing updated = new ConsistentHashRing(members, virtualNodes);
+    ring = updated;
+
+    for (Integer partition : new ArrayList<>(partitions.keySet())) {
+      String owner = updated.owner(position(partition));
+      if (owner != null && !nodeId.equals(owner)) {
+        TransferableRateLimiter state = partitions.remove(partition);
+        if (state != null) {
+          transport.handoff(owner, partition, state.snapshots());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of partitions this node holds the state of.
+   *
+   * @return the number of partitions.
+   */
+  public int partitions() {
+    return partitions.size();
+  }
+
+  /**
+   * Forwards requests to their owner in one message per kind of key,
+   * and writes the decisions into the requests.
+   */
+  private void forward(String owner, List<Request> requests) {
+    List<Request> users = new ArrayList<>();
+    List<Request> keys = new ArrayList<>();
+    for (Request request : requests) {
+      (request.userId != null ? users : keys).add(request);
+    }
+
+    if (!users.isEmpty()) {
+      String[] userIds = new String[users.size()];
+      for (int i = 0; i < userIds.length; i++) {
+        userIds[i] = users.get(i).userId;
+      }
+      complete(users, transport.forward(owner, userIds));
+    }
+    if (!keys.isEmpty()) {
+      long[] numericKeys = new long[keys.size()];
+      for (int i = 0; i < numericKeys.length; i++) {
+        numericKeys[i] = keys.get(i).key;
+      }
+      complete(keys, transport.forward(owner, numericKeys));
+    }
+  }
+
+  private static void complete(List<Request> requests, ForwardedDecision[] decisions) {
+    for (int i = 0; i < decisions.length; i++) {
+      Request request = requests.get(i);
+      request.allowed = decisions[i].allowed();
+      if (request.decision != null) {
+        decisions[i].copyTo(request.decision);
+      }
+    }
+  }
+
+  private Outbox outbox(String owner) {
+    return outboxes.computeIfAbsent(owner, Outbox::new);
+  }
+
+  private TransferableRateLimiter limiter(int partition) {
+    return partitions.computeIfAbsent(partition, k -> limiterFactory.get());
+  }
+
+  private int partition(String userId) {
+    return Math.floorMod(ConsistentHashRing.hash(userId), partitionCount);
+  }
+
+  private int partition(long key) {
+    return Math.floorMod(ConsistentHashRing.mix(key), partitionCount);
+  }
+
+  // The position of a partition on the ring.
+  private static long position(int partition) {
+    return ConsistentHashRing.mix(partition + 1L);
+  }
+
+  /**
+   * A request for a remote owner, from a user ID, or from a numeric key if the user ID is null.
+   */
+  private static final class Request {
+    private final String userId;
+    private final long key;
+    private final RateLimitDecision decision; // Holder of the requesting thread, or null.
+    private boolean allowed;
+    private boolean done; // Guarded by the lock of the outbox.
+    private Throwable failure; // Guarded by the lock of the outbox.
+
+    Request(String userId, long key, RateLimitDecision decision) {
+      this.userId = userId;
+      this.key = key;
+      this.decision = decision;
+    }
+  }
+
+  /**
+   * Coalesces the single requests for a remote owner. While a message to the owner
+   * is in flight, the requests which arrive are queued. Once it returns, the thread
+   * of the first queued request sends all of them in the next message, and the other
+   * threads wait for their decisions.
+   */
+  private final class Outbox {
+    private final String owner;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sent = lock.newCondition();
+    private List<Request> queued = new ArrayList<>(); // Guarded by lock.
+    private boolean sending; // Guarded by lock.
+
+    Outbox(String owner) {
+      this.owner = owner;
+    }
+
+    /**
+     * Sends a request to the owner, together with the requests queued meanwhile.
+     *
+     * @param request The request to send.
+     * @return true if the request is allowed, false otherwise.
+     * @throws IllegalStateException if the request was sent by another thread,
+     *                               whose transport failed.
+     */
+    boolean send(Request request) {
+      List<Request> batch;
+      lock.lock();
+      try {
+        queued.add(request);
+        while (sending && !request.done) {
+          sent.awaitUninterruptibly();
+        }
+        if (request.done) {
+          if (request.failure != null) {
+            throw new IllegalStateException("Failed to forward requests to " + owner,
+                request.failure);
+          }
+          return request.allowed;
+        }
+        sending = true;
+        batch = queued;
+        queued = new ArrayList<>();
+      } finally {
+        lock.unlock();
+      }
+
+      Throwable failure = null;
+      try {
+        forward(owner, batch);
+      } catch (RuntimeException | Error e) {
+        failure = e;
+        throw e;
+      } finally {
+        lock.lock();
+        try {
+          for (Request sentRequest : batch) {
+            sentRequest.done = true;
+            sentRequest.failure = failure;
+          }
+          sending = false;
+          sent.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+      return request.allowed;
+    }
+  }
+}
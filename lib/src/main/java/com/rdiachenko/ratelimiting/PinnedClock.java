@@ -0,0 +1,66 @@
+package com.rdiachenko.ratelimiting;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * A clock showing a time pinned by its owner instead of the system time, so that
+ * a limiter decides on a request as of the time the request was made, however
+ * late it gets to decide. Views of the clock in other zones share its time.
+ *
+ * <p>The clock is not thread safe: the time must be pinned and read by the same
+ * thread, or passed between threads through a happens-before edge.
+ */
+final class PinnedClock extends Clock {
+
+  private final Time time;
+  private final ZoneId zone;
+
+  /**
+   * Constructs a PinnedClock showing the epoch.
+   *
+   * @param zone The time zone of the clock.
+   */
+  PinnedClock(ZoneId zone) {
+    this(new Time(), zone);
+  }
+
+  private PinnedClock(Time time, ZoneId zone) {
+    this.time = time;
+    this.zone = zone;
+  }
+
+  /**
+   * Pins the time shown by the clock and all its views.
+   *
+   * @param millis The time in epoch milliseconds.
+   */
+  void pin(long millis) {
+    time.millis = millis;
+  }
+
+  @Override
+  public long millis() {
+    return time.millis;
+  }
+
+  @Override
+  public Instant instant() {
+    return Instant.ofEpochMilli(time.millis);
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return zone.equals(this.zone) ? this : new PinnedClock(time, zone);
+  }
+
+  private static final class Time {
+    long millis;
+  }
+}
@@ -0,0 +1,164 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reusable holder of the details of a rate limiting decision, which are
+ * needed to emit headers like {@code RateLimit-Remaining}, {@code RateLimit-Reset}
+ * and {@code Retry-After}. A holder is not thread safe and is meant to be owned
+ * by a single thread, which passes it to every decision it makes.
+ */
+public final class RateLimitDecision {
+
+  private boolean allowed;
+  private long remaining;
+  private long retryAfterNanos;
+  private long resetNanos;
+  private long batch = 1;
+  private long batchRetryAfterNanos;
+
+  /**
+   * Returns whether the request was allowed.
+   *
+   * @return true if the request was allowed, false otherwise.
+   */
+  public boolean allowed() {
+    return allowed;
+  }
+
+  /**
+   * Returns the number of requests which can still be made right now.
+   * For approximate algorithms this is an estimate.
+   *
+   * @return the number of remaining requests.
+   */
+  public long remaining() {
+    return remaining;
+  }
+
+  /**
+   * Returns the time to wait until the next request can be allowed.
+   *
+   * @return the time to wait in nanoseconds, 0 if the request was allowed.
+   */
+  public long retryAfterNanos() {
+    return retryAfterNanos;
+  }
+
+  /**
+   * Returns the time until the limit is fully replenished,
+   * assuming no further requests are made.
+   *
+   * @return the time until the reset in nanoseconds.
+   */
+  public long resetNanos() {
+    return resetNanos;
+  }
+
+  /**
+   * Returns the number of requests the owner of this holder means to make at once.
+   *
+   * @return the number of requests, 1 unless set otherwise.
+   * @see #batch(long)
+   */
+  public long batch() {
+    return batch;
+  }
+
+  /**
+   * Sets the number of requests the owner of this holder means to make at once,
+   * such as a batch of items or a chunk of bytes, for which the decisions written
+   * into this holder describe {@link #batchRetryAfterNanos()}. The number is kept
+   * across decisions.
+   *
+   * @param requests The number of requests.
+   * @return this holder.
+   * @throws IllegalArgumentException if the number of requests is not positive.
+   */
+  public RateLimitDecision batch(long requests) {
+    if (requests <= 0) {
+      throw new IllegalArgumentException("Batch must be positive: " + requests);
+    }
+    this.batch = requests;
+    return this;
+  }
+
+  /**
+   * Returns the time to wait until the whole batch of requests can be made, or until
+   * the limit is fully replenished if that is sooner, assuming no further requests
+   * are made. Limiters which replenish gradually compute it from their own refill
+   * rate. The others report the time until the next request can be made for a batch
+   * of 1, and the time until the reset for larger batches.
+   *
+   * @return the time to wait in nanoseconds, 0 if the batch can be made right now.
+   * @see #batch(long)
+   */
+  public long batchRetryAfterNanos() {
+    return batchRetryAfterNanos;
+  }
+
+  /**
+   * Updates the decision with times given in milliseconds.
+   * Negative times are treated as 0.
+   *
+   * @param allowed          Whether the request was allowed.
+   * @param remaining        The number of remaining requests.
+   * @param retryAfterMillis The time to wait until the next request can be allowed.
+   * @param resetMillis      The time until the limit is fully replenished.
+   */
+  void set(boolean allowed, long remaining, long retryAfterMillis, long resetMillis) {
+    this.allowed = allowed;
+    this.remaining = Math.max(0, remaining);
+    this.retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryAfterMillis));
+    this.resetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, resetMillis));
+    this.batchRetryAfterNanos = defaultBatchRetryAfterNanos();
+  }
+
+  /**
+   * Updates the decision with times given in nanoseconds.
+   * Negative times are treated as 0.
+   *
+   * @param allowed         Whether the request was allowed.
+   * @param remaining       The number of remaining requests.
+   * @param retryAfterNanos The time to wait until the next request can be allowed.
+   * @param resetNanos      The time until the limit is fully replenished.
+   */
+  void setNanos(boolean allowed, long remaining, long retryAfterNanos, long resetNanos) {
+    this.allowed = allowed;
+    this.remaining = Math.max(0, remaining);
+    this.retryAfterNanos = Math.max(0, retryAfterNanos);
+    this.resetNanos = Math.max(0, resetNanos);
+    this.batchRetryAfterNanos = defaultBatchRetryAfterNanos();
+  }
+
+  /**
+   * Updates the time to wait until the whole batch of requests can be made, for
+   * limiters which can compute it from their refill rate. Must be called after the
+   * rest of the decision is set. The time is rounded up to whole milliseconds, the
+   * resolution of the clocks the limiters read, so that the batch is there once the
+   * time has passed. Negative times are treated as 0.
+   *
+   * @param batchRetryAfterNanos The time to wait until the batch can be made.
+   */
+  void setBatchRetryAfterNanos(long batchRetryAfterNanos) {
+    long millis = Math.ceilDiv(Math.max(0, batchRetryAfterNanos), TimeUnit.MILLISECONDS.toNanos(1));
+    this.batchRetryAfterNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  private long defaultBatchRetryAfterNanos() {
+    if (remaining >= batch) {
+      return 0;
+    }
+    return batch == 1 ? retryAfterNanos : Math.max(retryAfterNanos, resetNanos);
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimitDecision{allowed=" + allowed
+        + ", remaining=" + remaining
+        + ", retryAfterNanos=" + retryAfterNanos
+        + ", resetNanos=" + resetNanos
+        + ", batch=" + batch
+        + ", batchRetryAfterNanos=" + batchRetryAfterNanos + '}';
+  }
+}
@@ -0,0 +1,54 @@
+package com.rdiachenko.ratelimiting;
+
+/**
+ * A rate limiter which decides whether requests of a user are allowed.
+ */
+public interface RateLimiter {
+
+  /**
+   * Determines if a request from the specified user ID is allowed.
+   *
+   * @param userId The ID of the user making the request.
+   * @return true if the request is allowed, false otherwise.
+   */
+  boolean allowed(String userId);
+
+  /**
+   * Determines if a request from the specified user ID is allowed and describes
+   * the state of the user's limit in the given decision. The decision is computed
+   * from the same state read as the result, and is meant to be reused by the
+   * caller across requests, so that nothing is allocated.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into.
+   * @return true if the request is allowed, false otherwise.
+   */
+  boolean allowed(String userId, RateLimitDecision decision);
+
+  /**
+   * Determines if a request from the specified numeric key, such as an account ID
+   * or an IPv4 address, is allowed.
+   *
+   * <p>Numeric keys form a namespace of their own, apart from string user IDs, in
+   * every rate limiter: {@code allowed(42L)} and {@code allowed("42")} are limited as
+   * two different users. This lets the rate limiting algorithms keep numeric keys in
+   * primitive maps, so the key is neither boxed nor turned into a string.
+   *
+   * @param key The numeric key of the user making the request.
+   * @return true if the request is allowed, false otherwise.
+   */
+  default boolean allowed(long key) {
+    return allowed(key, null);
+  }
+
+  /**
+   * Determines if a request from the specified numeric key is allowed and
+   * describes the state of the key's limit in the given decision.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   * @see #allowed(long)
+   */
+  boolean allowed(long key, RateLimitDecision decision);
+}
@@ -0,0 +1,327 @@
+package com.rdiachenko.ratelimiting;
+
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * A rate limiter which enforces the decisions of a primary limiter, and evaluates
+ * candidate limiters on the same traffic in the background without enforcing them,
+ * counting where they disagree with the primary one. This shows how switching to
+ * another algorithm or configuration would treat live traffic.
+ *
+ * <p>Each decision is published into a bounded lock-free ring buffer, together with
+ * the time of the request, which costs the enforced path a single CAS. A background
+ * thread takes the decisions out of the buffer and asks the candidates, so candidates
+ * do not have to be thread safe. Candidates are created on a clock which the
+ * background thread pins to the time of each request before asking them, so they
+ * decide as of the time the primary limiter did, however late they get to decide.
+ * When the buffer is full, the decision is dropped from the shadow evaluation
+ * instead of blocking. The background thread parks while the buffer is empty,
+ * and the producer which publishes into an empty buffer wakes it up.
+ */
+public final class ShadowRateLimiter implements RateLimiter, AutoCloseable {
+
+  private final RateLimiter primary;
+  private final Clock clock;
+  private final PinnedClock candidateClock = new PinnedClock(ZoneOffset.UTC);
+  private final RateLimiter[] candidates;
+  private final Counters[] counters;
+  private final LongAdder dropped = new LongAdder();
+
+  // A bounded multi-producer single-consumer ring buffer. A slot is free for
+  // the producer claiming position p when its sequence is p, and holds the
+  // decision made at position p when its sequence is p + 1.
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final String[] userIds; // Null for requests from numeric keys.
+  private final long[] keys;
+  private final long[] timestamps;
+  private final boolean[] decisions;
+  private final AtomicLong tail = new AtomicLong();
+  private long head; // Accessed only by the consumer.
+
+  private final ThreadFactory threadFactory;
+  private volatile Thread consumer; // Set by start().
+  private volatile boolean waiting; // Whether the consumer is about to park or parked.
+  private volatile boolean closed;
+
+  /**
+   * Constructs a ShadowRateLimiter. Decisions are buffered, but not evaluated
+   * until the background thread is started.
+   *
+   * @param primary       The rate limiter whose decisions are enforced.
+   * @param candidates    The configurations of the rate limiters to evaluate in the
+   *                      background, each creating a limiter which uses the given clock.
+   * @param bufferSize    The maximum number of decisions waiting for the evaluation,
+   *                      rounded up to a power of two.
+   * @param clock         The clock the primary rate limiter uses.
+   * @param threadFactory The factory of the background thread.
+   */
+  public ShadowRateLimiter(RateLimiter primary,
+                           List<? extends Function<Clock, ? extends RateLimiter>> candidates,
+                           int bufferSize, Clock clock, ThreadFactory threadFactory) {
+    this.primary = primary;
+    this.clock = clock;
+    this.threadFactory = threadFactory;
+    this.candidates = new RateLimiter[candidates.size()];
+    for (int i = 0; i < this.candidates.length; i++) {
+      this.candidates[i] = candidates.get(i).apply(candidateClock);
+    }
+    this.counters = new Counters[this.candidates.length];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new Counters();
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(1, bufferSize - 1)) << 1;
+    this.mask = capacity - 1;
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.userIds = new String[capacity];
+    this.keys = new long[capacity];
+    this.timestamps = new long[capacity];
+    this.decisions = new boolean[capacity];
+  }
+
+  /**
+   * Starts the background thread which evaluates the candidates.
+   *
+   * @return this limiter.
+   * @throws IllegalStateException if the thread is already started.
+   */
+  public synchronized ShadowRateLimiter start() {
+    if (consumer != null) {
+      throw new IllegalStateException("The shadow evaluation is already started");
+    }
+    consumer = threadFactory.newThread(this::evaluate);
+    consumer.start();
+    return this;
+  }
+
+  /**
+   * Determines if a request from the specified user ID is allowed by the primary
+   * rate limiter, and queues the request for the evaluation by the candidates.
+   *
+   * @param userId The ID of the user making the request.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines if a request from the specified user ID is allowed by the primary
+   * rate limiter, and queues the request for the evaluation by the candidates.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the primary decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
+    boolean allowed = primary.allowed(userId, decision);
+    if (!closed) {
+      publish(userId, 0, allowed);
+    }
+    return allowed;
+  }
+
+  /**
+   * Determines if a request from the specified numeric key is allowed by the primary
+   * rate limiter, and queues the request for the evaluation by the candidates.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the primary decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    boolean allowed = primary.allowed(key, decision);
+    if (!closed) {
+      publish(null, key, allowed);
+    }
+    return allowed;
+  }
+
+  /**
+   * Returns the outcome of the shadow evaluation of a candidate so far.
+   *
+   * @param candidate The index of the candidate's configuration in the list given to the constructor.
+   * @return the counters of the candidate.
+   */
+  public CandidateStats stats(int candidate) {
+    Counters c = counters[candidate];
+    return new CandidateStats(c.evaluated.sum(), c.rejectedOnlyByCandidate.sum(),
+        c.allowedOnlyByCandidate.sum(), c.failed.sum());
+  }
+
+  /**
+   * Returns the number of decisions dropped from the shadow evaluation,
+   * because the buffer was full.
+   *
+   * @return the number of dropped decisions.
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Stops the background thread, dropping the decisions not evaluated yet, and waits
+   * for it to stop. If the calling thread is interrupted while waiting, it stops
+   * waiting and keeps its interrupt status.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Thread stopped = consumer;
+    if (stopped == null) {
+      return;
+    }
+    LockSupport.unpark(stopped);
+    try {
+      stopped.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Publishes a decision of the primary limiter on a request from a user ID,
+   * or from a numeric key if the user ID is null, into the buffer, unless it is full.
+   * Wakes the background thread up if it waits for work.
+   */
+  private void publish(String userId, long key, boolean allowed) {
+    long timestamp = clock.millis();
+    long position = tail.get();
+    while (true) {
+      int slot = (int) (position & mask);
+      long sequence = sequences.get(slot);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          userIds[slot] = userId;
+          keys[slot] = key;
+          timestamps[slot] = timestamp;
+          decisions[slot] = allowed;
+          sequences.set(slot, position + 1);
+          if (waiting) {
+            LockSupport.unpark(consumer);
+          }
+          return;
+        }
+        position = tail.get();
+      } else if (sequence < position) {
+        // The slot still holds the decision published a lap ago.
+        dropped.increment();
+        return;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Runs the candidates on the published decisions until the limiter is closed.
+   */
+  private void evaluate() {
+    while (!closed) {
+      if (drain() == 0) {
+        // Announce the wait before checking the buffer once more: a producer either
+        // publishes before the check, or sees the announcement and unparks.
+        waiting = true;
+        if (!published() && !closed) {
+          LockSupport.park(this);
+        }
+        waiting = false;
+      }
+    }
+  }
+
+  /**
+   * Checks if a decision waits for the evaluation at the head of the buffer.
+   */
+  private boolean published() {
+    return sequences.get((int) (head & mask)) == head + 1;
+  }
+
+  /**
+   * Runs the candidates on the decisions published so far, as of the time of
+   * each request. Must be called only by the background thread, or by a single
+   * thread while the background thread is not started.
+   *
+   * @return the number of evaluated decisions.
+   */
+  int drain() {
+    int drained = 0;
+    while (true) {
+      int slot = (int) (head & mask);
+      if (!published()) {
+        return drained;
+      }
+      String userId = userIds[slot];
+      long key = keys[slot];
+      candidateClock.pin(timestamps[slot]);
+      boolean allowed = decisions[slot];
+      userIds[slot] = null;
+      sequences.set(slot, head + mask + 1);
+      head++;
+      drained++;
+
+      for (int i = 0; i < candidates.length; i++) {
+        Counters c = counters[i];
+        try {
+          boolean candidateAllowed = userId != null
+              ? candidates[i].allowed(userId)
+              : candidates[i].allowed(key);
+          if (allowed && !candidateAllowed) {
+            c.rejectedOnlyByCandidate.increment();
+          } else if (!allowed && candidateAllowed) {
+            c.allowedOnlyByCandidate.increment();
+          }
+          c.evaluated.increment();
+        } catch (RuntimeException e) {
+          c.failed.increment();
+        }
+      }
+    }
+  }
+
+  /**
+   * The outcome of the shadow evaluation of a candidate.
+   *
+   * @param evaluated               The number of requests the candidate decided on.
+   * @param rejectedOnlyByCandidate The number of requests allowed by the primary
+   *                                limiter but rejected by the candidate.
+   * @param allowedOnlyByCandidate  The number of requests rejected by the primary
+   *                                limiter but allowed by the candidate.
+   * @param failed                  The number of requests the candidate failed on.
+   */
+  public record CandidateStats(long evaluated, long rejectedOnlyByCandidate,
+                               long allowedOnlyByCandidate, long failed) {
+
+    /**
+     * Returns the share of requests decided differently by the candidate.
+     *
+     * @return the disagreement ratio between 0 and 1.
+     */
+    public double disagreementRatio() {
+      return evaluated == 0 ? 0
+          : (double) (rejectedOnlyByCandidate + allowedOnlyByCandidate) / evaluated;
+    }
+  }
+
+  private static final class Counters {
+    final LongAdder evaluated = new LongAdder();
+    final LongAdder rejectedOnlyByCandidate = new LongAdder();
+    final LongAdder allowedOnlyByCandidate = new LongAdder();
+    final LongAdder failed = new LongAdder();
+  }
+}
@@ -0,0 +1,366 @@
+package com.rdiachenko.ratelimiting;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe, approximate token bucket rate limiter for very hot keys.
+ *
+ * <p>Each user's bucket is split into shards, and every shard owns a slice of the
+ * bucket's capacity and refill rate. A thread always starts with its home shard and
+ * decides locally, so threads mostly touch different state. The home shard is picked
+ * by a random per-thread probe, which moves to another random shard whenever the thread
+ * finds its home shard locked by another thread, so threads which collide spread out.
+ * Only when the home shard runs dry does the thread steal tokens from its siblings,
+ * starting from a random one, so that threads running dry together drain different
+ * siblings.
+ *
+ * <p>Tokens are only moved between shards, never created, and no shard ever holds more
+ * than its slice of the capacity. Every shard refills its slice of the rate exactly,
+ * carrying over its fraction of a token like {@link TokenBucketRateLimiter} does. So in
+ * any time {@code T}, the limiter admits fewer than
+ * {@code capacity + T * tokensPerPeriod / period + shards} requests, while an exact
+ * token bucket admits fewer than {@code capacity + T * tokensPerPeriod / period + 1}:
+ * the maximum overshoot is {@code shards - 1} requests, one fraction of a token per
+ * additional shard. The limiter may also admit less: a shard that sits full while its
+ * siblings are busy wastes its share of the refill. Both errors grow with the number of
+ * shards, which should therefore be no larger than the number of threads that hit the
+ * same key.
+ */
+public class ShardedTokenBucketRateLimiter implements RateLimiter {
+
+  private static final ThreadLocal<Probe> PROBE = ThreadLocal.withInitial(Probe::new);
+
+  private final int capacity;
+  private final int tokensPerPeriod;
+  private final int shards;
+  private final FixedPointRate[] shardRates; // Refill rate of each shard, by index.
+  private final Clock clock;
+  private final Map<String, ShardedTokenBucket> userTokenBucket = new ConcurrentHashMap<>();
+  private final LongKeyMap<ShardedTokenBucket> keyTokenBucket = new LongKeyMap<>();
+
+  /**
+   * Constructs a ShardedTokenBucketRateLimiter with the specified parameters.
+   *
+   * @param capacity        The maximum number of tokens that the bucket can hold.
+   * @param period          The period over which tokens are replenished.
+   * @param tokensPerPeriod The number of tokens added to the bucket each period.
+   * @param shards          The number of shards each bucket is split into. It is capped
+   *                        by the capacity and the tokens per period, so that every
+   *                        shard owns at least one token of each.
+   * @param clock           The clock instance to use for timing.
+   * @throws IllegalArgumentException if the number of tokens per period is not positive.
+   */
+  public ShardedTokenBucketRateLimiter(int capacity, Duration period, int tokensPerPeriod,
+                                       int shards, Clock clock) {
+    if (tokensPerPeriod <= 0) {
+      throw new IllegalArgumentException("Tokens per period must be positive: " + tokensPerPeriod);
+    }
+    this.capacity = capacity;
+    this.tokensPerPeriod = tokensPerPeriod;
+    this.shards = Math.max(1, Math.min(shards, Math.min(capacity, tokensPerPeriod)));
+    this.shardRates = new FixedPointRate[this.shards];
+    for (int i = 0; i < this.shards; i++) {
+      // Slices take at most two sizes, so shards share their rates.
+      shardRates[i] = i > 0 && slice(tokensPerPeriod, i) == slice(tokensPerPeriod, i - 1)
+          ? shardRates[i - 1] : new FixedPointRate(slice(tokensPerPeriod, i), period);
+    }
+    this.clock = clock;
+  }
+
+  /**
+   * Determines if a request from the specified user ID
+   * is allowed based on the current state of their sharded token bucket.
+   *
+   * @param userId The ID of the user making the request.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines if a request from the specified user ID
+   * is allowed based on the current state of their sharded token bucket,
+   * and describes the state of the bucket in the given decision. The decision
+   * is estimated from the shard of the current thread only, whose remaining
+   * tokens and refill times are scaled up to the whole bucket.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
+    // Initialize a full bucket for new users or retrieve existing one.
+    ShardedTokenBucket bucket = userTokenBucket.computeIfAbsent(userId,
+        k -> new ShardedTokenBucket(now()));
+
+    return bucket.consume(now(), decision);
+  }
+
+  /**
+   * Determines if a request from the specified numeric key
+   * is allowed based on the current state of its sharded token bucket,
+   * and describes the state of the bucket in the given decision.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    ShardedTokenBucket bucket = keyTokenBucket.computeIfAbsent(key,
+        k -> new ShardedTokenBucket(now()));
+
+    return bucket.consume(now(), decision);
+  }
+
+  /**
+   * Reads the clock.
+   *
+   * @return the current time in nanoseconds.
+   */
+  private long now() {
+    return TimeUnit.MILLISECONDS.toNanos(clock.millis());
+  }
+
+  /**
+   * Splits the value into the given number of slices which differ by at most one.
+   *
+   * @param value The value to split.
+   * @param index The index of the slice.
+   * @return the size of the slice at the given index.
+   */
+  private int slice(int value, int index) {
+    return value / shards + (index < value % shards ? 1 : 0);
+  }
+
+  private class ShardedTokenBucket {
+    private final Shard[] bucketShards;
+
+    /**
+     * Constructs a ShardedTokenBucket which distributes the capacity
+     * and the refill rate evenly between its shards.
+     *
+     * @param refillTimestamp The timestamp of the last refill in nanoseconds.
+     */
+    ShardedTokenBucket(long refillTimestamp) {
+      bucketShards = new Shard[shards];
+      for (int i = 0; i < shards; i++) {
+        bucketShards[i] = new Shard(refillTimestamp, slice(capacity, i),
+            slice(tokensPerPeriod, i), shardRates[i]);
+      }
+    }
+
+    /**
+     * Consumes a single token from the home shard of the current thread. If the
+     * shard is empty, tokens are stolen from the sibling shards.
+     *
+     * @param now      The current time in nanoseconds.
+     * @param decision The holder to write the details of the decision into, or null.
+     * @return true if a token was consumed, false otherwise.
+     */
+    boolean consume(long now, RateLimitDecision decision) {
+      Probe probe = PROBE.get();
+      int home = Math.floorMod(probe.value, bucketShards.length);
+      Shard shard = bucketShards[home];
+
+      boolean allowed = shard.consume(now, probe) || steal(home, now);
+
+      if (decision != null) {
+        shard.describe(allowed, now, decision, shards);
+      }
+      return allowed;
+    }
+
+    /**
+     * Rebalances the bucket: takes half of the tokens of the first sibling
+     * which has any, visiting the siblings in order from a random one, uses
+     * one of the tokens for this request and keeps the rest in the shard
+     * which ran dry.
+     *
+     * @param home The index of the shard which ran dry.
+     * @param now  The current time in nanoseconds.
+     * @return true if a token was stolen and consumed, false otherwise.
+     */
+    private boolean steal(int home, long now) {
+      int siblings = bucketShards.length - 1;
+      if (siblings == 0) {
+        return false;
+      }
+      int first = ThreadLocalRandom.current().nextInt(siblings);
+      for (int i = 0; i < siblings; i++) {
+        int sibling = (home + 1 + (first + i) % siblings) % bucketShards.length;
+        long stolen = bucketShards[sibling].steal(now);
+        if (stolen > 0) {
+          bucketShards[home].deposit(stolen - 1);
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class Shard {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int shardCapacity;
+    private final FixedPointRate refillRate;
+    private long refillTimestamp; // Timestamp of the last refill in nanoseconds.
+    private long refillCarry; // Fraction of a token refilled since the last refill.
+    private long tokenCount; // Current number of tokens in the shard.
+
+    /**
+     * Constructs a Shard owning a slice of the bucket, initially full of its
+     * share of tokens per period, up to its slice of the capacity.
+     *
+     * @param refillTimestamp      The timestamp of the last refill in nanoseconds.
+     * @param shardCapacity        The slice of the capacity owned by this shard.
+     * @param shardTokensPerPeriod The slice of the tokens per period owned by this shard.
+     * @param refillRate           The slice of the refill rate owned by this shard.
+     */
+    Shard(long refillTimestamp, int shardCapacity, int shardTokensPerPeriod,
+          FixedPointRate refillRate) {
+      this.refillTimestamp = refillTimestamp;
+      this.shardCapacity = shardCapacity;
+      this.refillRate = refillRate;
+      this.tokenCount = Math.min(shardTokensPerPeriod, shardCapacity);
+    }
+
+    /**
+     * Consumes a single token from the shard, if available. If another thread
+     * holds the shard, the probe of the current thread moves to another random
+     * shard for its next requests.
+     *
+     * @param now   The current time in nanoseconds.
+     * @param probe The probe of the current thread.
+     * @return true if a token was consumed, false otherwise.
+     */
+    boolean consume(long now, Probe probe) {
+      if (!lock.tryLock()) {
+        probe.value = ThreadLocalRandom.current().nextInt();
+        lock.lock();
+      }
+      try {
+        refill(now);
+        if (tokenCount > 0) {
+          --tokenCount;
+          return true;
+        } else {
+          return false;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Takes half of the available tokens, rounded up, out of the shard.
+     *
+     * @param now The current time in nanoseconds.
+     * @return the number of stolen tokens.
+     */
+    long steal(long now) {
+      lock.lock();
+      try {
+        refill(now);
+        long stolen = (tokenCount + 1) / 2;
+        tokenCount -= stolen;
+        return stolen;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Adds tokens stolen from a sibling shard which this shard ran dry before.
+     * Siblings hold at most one token more than the slice of this shard, so half
+     * of their tokens fit, unless the shard was refilled or received another
+     * deposit in the meantime. The tokens which do not fit are dropped, so that
+     * no shard ever holds more than its slice of the capacity.
+     *
+     * @param tokens The number of tokens to add.
+     */
+    void deposit(long tokens) {
+      lock.lock();
+      try {
+        tokenCount = Math.min(tokenCount + tokens, shardCapacity);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Describes the state of the whole bucket as estimated from this shard.
+     *
+     * @param allowed  Whether the request was allowed.
+     * @param now      The current time in nanoseconds.
+     * @param decision The holder to write the details of the decision into.
+     */
+    void describe(boolean allowed, long now, RateLimitDecision decision, int shards) {
+      lock.lock();
+      try {
+        long missingTokens = Math.max(0, shardCapacity - tokenCount);
+        long resetAt = refilledAt(missingTokens);
+        decision.setNanos(allowed, tokenCount * shards,
+            allowed ? 0 : refilledAt(1) - now, resetAt - now);
+        // Each shard is expected to refill its share of the batch.
+        long batch = Math.min(Math.ceilDiv(decision.batch(), shards), shardCapacity);
+        decision.setBatchRetryAfterNanos(Math.min(refilledAt(batch - tokenCount), resetAt) - now);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Calculates the time at which the given number of tokens
+     * will have been added to the shard since the last refill.
+     *
+     * @param tokens The number of tokens to add.
+     * @return the time at which the tokens are available.
+     */
+    private long refilledAt(long tokens) {
+      return tokens <= 0 ? refillTimestamp
+          : refillTimestamp + refillRate.nanosUntil(tokens, refillCarry);
+    }
+
+    /**
+     * Regenerates the shard's slice of tokens in a greedy manner, carrying
+     * the fraction of a token which has not been refilled yet over to the
+     * next refill, unless the shard is full. The clock is read before the
+     * shard is locked, so a thread may bring a time older than the last
+     * refill, which refills nothing.
+     *
+     * @param now The current time in nanoseconds.
+     */
+    private void refill(long now) {
+      long elapsedTime = now - refillTimestamp;
+      if (elapsedTime <= 0) {
+        return;
+      }
+      long availableTokens = refillRate.accrued(elapsedTime, refillCarry);
+
+      if (availableTokens >= shardCapacity - tokenCount) {
+        tokenCount = shardCapacity;
+        refillCarry = 0;
+      } else {
+        tokenCount += availableTokens;
+        refillCarry = refillRate.carry(elapsedTime, refillCarry);
+      }
+      refillTimestamp = now;
+    }
+  }
+
+  /**
+   * The home shard index of a thread, which is random and moves on contention.
+   */
+  private static final class Probe {
+    int value = ThreadLocalRandom.current().nextInt();
+  }
+}
@@ -5,12 +5,13 @@ import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
-public class SlidingWindowCountRateLimiter {
+public class SlidingWindowCountRateLimiter implements RateLimiter {
 
   private final int maxCount;
   private final Duration windowDuration;
   private final Clock clock;
   private final Map<String, SlidingWindow> userSlidingWindow = new HashMap<>();
+  private final LongKeyMap<SlidingWindow> keySlidingWindow = new LongKeyMap<>();
 
   /**
    * Constructs a SlidingWindowCountRateLimiter with
@@ -34,24 +35,56 @@ public class SlidingWindowCountRateLimiter {
    * @param userId The ID of the user making the request.
    * @return true if the request is allowed, false otherwise.
    */
+  @Override
   public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines if a request from the specified user ID is allowed
+   * based on their activity within the current sliding window,
+   * and describes the estimated state of the window in the given decision.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
     long now = clock.millis();
 
     // Initialize an empty sliding window for new users
     // or retrieve the existing one.
-    SlidingWindow slidingWindow = userSlidingWindow.computeIfAbsent(userId,
-        k -> new SlidingWindow(new FixedWindow(now, 0),
-            new FixedWindow(now, 0)));
+    return allowed(userSlidingWindow.computeIfAbsent(userId, k -> new SlidingWindow(now)),
+        now, decision);
+  }
 
-    FixedWindow currentFixedWindow = slidingWindow.currentFixedWindow();
-    FixedWindow previousFixedWindow = slidingWindow.previousFixedWindow();
+  /**
+   * Determines if a request from the specified numeric key is allowed
+   * based on its activity within the current sliding window,
+   * and describes the estimated state of the window in the given decision.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    long now = clock.millis();
+    return allowed(keySlidingWindow.computeIfAbsent(key, k -> new SlidingWindow(now)),
+        now, decision);
+  }
+
+  private boolean allowed(SlidingWindow slidingWindow, long now, RateLimitDecision decision) {
+    FixedWindow currentFixedWindow = slidingWindow.currentFixedWindow;
+    FixedWindow previousFixedWindow = slidingWindow.previousFixedWindow;
 
     // Transition to a new fixed window when the current one expires.
     if (currentFixedWindow.timestamp() + windowDuration.toMillis() < now) {
       previousFixedWindow = currentFixedWindow;
       currentFixedWindow = new FixedWindow(now, 0);
-      userSlidingWindow.put(userId,
-          new SlidingWindow(previousFixedWindow, currentFixedWindow));
+      slidingWindow.previousFixedWindow = previousFixedWindow;
+      slidingWindow.currentFixedWindow = currentFixedWindow;
     }
 
     // Weight calculation for the previous window.
@@ -71,23 +104,90 @@ public class SlidingWindowCountRateLimiter {
     // Check if the request count within the sliding window exceeds the limit.
     // If so, reject the request; otherwise, update the request count
     // in the current fixed window and allow the request.
-    if (count >= maxCount) {
-      return false;
-    } else {
+    boolean allowed = count < maxCount;
+    if (allowed) {
       currentFixedWindow = new FixedWindow(currentFixedWindow.timestamp(),
           currentFixedWindow.count() + 1);
-      userSlidingWindow.put(userId,
-          new SlidingWindow(previousFixedWindow, currentFixedWindow));
-      return true;
+      slidingWindow.currentFixedWindow = currentFixedWindow;
+      ++count;
+    }
+
+    if (decision != null) {
+      decision.set(allowed, maxCount - count,
+          allowed ? 0 : nextAllowed(previousFixedWindow, currentFixedWindow) - now,
+          reset(previousFixedWindow, currentFixedWindow) - now);
+    }
+    return allowed;
+  }
+
+  /**
+   * Estimates the earliest time at which the weighted request count
+   * drops below the limit, assuming no further requests are made.
+   *
+   * @param previousFixedWindow The previous fixed window.
+   * @param currentFixedWindow  The current fixed window.
+   * @return the earliest time at which a request can be allowed.
+   */
+  private long nextAllowed(FixedWindow previousFixedWindow, FixedWindow currentFixedWindow) {
+    long currentFixedWindowEnd = currentFixedWindow.timestamp() + windowDuration.toMillis();
+
+    // While the current window lasts, only the weight of the previous one decreases.
+    int available = maxCount - currentFixedWindow.count();
+    if (available > 0) {
+      long time = weightedBelow(previousFixedWindow, available);
+      if (time <= currentFixedWindowEnd) {
+        return time;
+      }
     }
+
+    // Otherwise the current window becomes the previous one once it expires.
+    return Math.max(currentFixedWindowEnd + 1, weightedBelow(currentFixedWindow, maxCount));
+  }
+
+  /**
+   * Finds the earliest time at which the weighted count of the given
+   * previous fixed window drops below the given number of requests.
+   *
+   * @param previousFixedWindow The fixed window treated as the previous one.
+   * @param limit               The number of requests to drop below.
+   * @return the earliest time at which the weighted count is below the limit.
+   */
+  private long weightedBelow(FixedWindow previousFixedWindow, int limit) {
+    if (previousFixedWindow.count() < limit) {
+      return 0;
+    }
+    // count * (timestamp + 2 * duration - time) / duration < limit
+    long overlap = Math.ceilDiv(limit * windowDuration.toMillis(), previousFixedWindow.count()) - 1;
+    return previousFixedWindow.timestamp() + 2 * windowDuration.toMillis() - overlap;
+  }
+
+  /**
+   * Estimates the time at which both fixed windows stop contributing
+   * to the weighted request count.
+   *
+   * @param previousFixedWindow The previous fixed window.
+   * @param currentFixedWindow  The current fixed window.
+   * @return the time at which the sliding window is empty.
+   */
+  private long reset(FixedWindow previousFixedWindow, FixedWindow currentFixedWindow) {
+    FixedWindow lastFixedWindow = currentFixedWindow.count() > 0
+        ? currentFixedWindow : previousFixedWindow;
+    return lastFixedWindow.count() > 0
+        ? lastFixedWindow.timestamp() + 2 * windowDuration.toMillis() : 0;
   }
 
   /**
    * Represents a sliding window consisting of a previous
    * and a current fixed window.
    */
-  private record SlidingWindow(FixedWindow previousFixedWindow,
-                               FixedWindow currentFixedWindow) {
+  private static class SlidingWindow {
+    private FixedWindow previousFixedWindow;
+    private FixedWindow currentFixedWindow;
+
+    SlidingWindow(long timestamp) {
+      this.previousFixedWindow = new FixedWindow(timestamp, 0);
+      this.currentFixedWindow = new FixedWindow(timestamp, 0);
+    }
   }
 
   /**
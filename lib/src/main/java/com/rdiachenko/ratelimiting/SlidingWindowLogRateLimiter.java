@@ -4,15 +4,17 @@ import java.time.Clock;
 import java.time.Duration;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 
-public class SlidingWindowLogRateLimiter {
+public class SlidingWindowLogRateLimiter implements RateLimiter {
 
   private final int maxCount;
   private final Duration windowDuration;
   private final Clock clock;
   private final Map<String, Deque<Long>> userSlidingWindow = new HashMap<>();
+  private final LongKeyMap<Deque<Long>> keySlidingWindow = new LongKeyMap<>();
 
   /**
    * Constructs a SlidingWindowLogRateLimiter with the specified
@@ -36,13 +38,43 @@ public class SlidingWindowLogRateLimiter {
    * @param userId The ID of the user making the request.
    * @return true if the request is allowed, false otherwise.
    */
+  @Override
   public boolean allowed(String userId) {
-    long now = clock.millis();
+    return allowed(userId, null);
+  }
 
+  /**
+   * Determines whether a request from the specified user ID
+   * is allowed based on the number of requests within the current sliding window,
+   * and describes the state of the window in the given decision.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
     // Initialize an empty sliding window for new users
     // or retrieve the existing one.
-    Deque<Long> slidingWindow = userSlidingWindow
-        .computeIfAbsent(userId, k -> new LinkedList<>());
+    return allowed(userSlidingWindow.computeIfAbsent(userId, k -> new LinkedList<>()), decision);
+  }
+
+  /**
+   * Determines whether a request from the specified numeric key
+   * is allowed based on the number of requests within the current sliding window,
+   * and describes the state of the window in the given decision.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    return allowed(keySlidingWindow.computeIfAbsent(key, k -> new LinkedList<>()), decision);
+  }
+
+  private boolean allowed(Deque<Long> slidingWindow, RateLimitDecision decision) {
+    long now = clock.millis();
 
     // Remove timestamps that are outside the current sliding window.
     while (!slidingWindow.isEmpty()
@@ -53,11 +85,32 @@ public class SlidingWindowLogRateLimiter {
     // Check if the request count within the window exceeds the limit.
     // If so, reject the request; otherwise, add the current
     // request's timestamp to the window and allow it.
-    if (slidingWindow.size() >= maxCount) {
-      return false;
-    } else {
+    boolean allowed = slidingWindow.size() < maxCount;
+    if (allowed) {
       slidingWindow.addLast(now);
-      return true;
     }
+
+    if (decision != null) {
+      decision.set(allowed, maxCount - slidingWindow.size(),
+          allowed ? 0 : expiry(slidingWindow, slidingWindow.size() - maxCount) - now,
+          slidingWindow.isEmpty() ? 0 : slidingWindow.getLast() + windowDuration.toMillis() + 1 - now);
+    }
+    return allowed;
+  }
+
+  /**
+   * Finds the time at which the timestamp at the given position
+   * drops out of the sliding window.
+   *
+   * @param slidingWindow The timestamps of the requests in the sliding window.
+   * @param index         The position of the timestamp, starting from the oldest one.
+   * @return the first time at which the timestamp is outside the window.
+   */
+  private long expiry(Deque<Long> slidingWindow, int index) {
+    Iterator<Long> timestamps = slidingWindow.iterator();
+    for (int i = 0; i < index; i++) {
+      timestamps.next();
+    }
+    return timestamps.next() + windowDuration.toMillis() + 1;
   }
 }
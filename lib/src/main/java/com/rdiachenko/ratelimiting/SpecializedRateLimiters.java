@@ -0,0 +1,184 @@
+package com.rdiachenko.ratelimiting;
+
+import com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A factory of token bucket and leaky bucket rate limiters specialized for their
+ * configuration, which make the same decisions as {@link TokenBucketRateLimiter}
+ * and {@link LeakyBucketRateLimiter} with less work per request.
+ *
+ * <p>The greedy refill has its own final limiter class, so the refill does not branch
+ * on the strategy and the JIT compiler sees a single receiver type at every call site
+ * of a limiter. It skips the arithmetic altogether when a bucket has been idle for
+ * longer than the time which refills it whole, and otherwise refills with the same
+ * {@link FixedPointRate} as the generic limiter. Rates whose fixed point arithmetic
+ * does not fit into a long fall back to the generic limiter.
+ *
+ * <p>The interval refill and the leaky bucket have nothing left to specialize: the
+ * generic limiters already divide by the period with a precomputed {@link Divisor},
+ * so they are returned as they are.
+ *
+ * <p>The specialized limiters support the {@link RateLimiter} methods only.
+ * Priority classes, bulk permits and the warm-up refill are left to the generic
+ * limiters.
+ */
+public final class SpecializedRateLimiters {
+
+  private SpecializedRateLimiters() {
+  }
+
+  /**
+   * Creates a token bucket rate limiter specialized for the given configuration.
+   *
+   * @param capacity        The maximum number of tokens that the bucket can hold.
+   * @param period          The period over which tokens are replenished.
+   * @param tokensPerPeriod The number of tokens added to the bucket each period.
+   * @param clock           The clock instance to use for timing.
+   * @param refillStrategy  The strategy for refilling the bucket with tokens.
+   * @return the rate limiter.
+   * @throws IllegalArgumentException if the strategy is {@link RefillStrategy#WARMUP},
+   *                                  or the number of tokens per period is not positive.
+   */
+  public static RateLimiter tokenBucket(int capacity, Duration period, int tokensPerPeriod,
+                                        Clock clock, RefillStrategy refillStrategy) {
+    return switch (refillStrategy) {
+      case GREEDY -> greedyTokenBucket(capacity, period, tokensPerPeriod, clock);
+      case INTERVALLY -> new TokenBucketRateLimiter(capacity, period, tokensPerPeriod, clock,
+          RefillStrategy.INTERVALLY);
+      case WARMUP -> throw new IllegalArgumentException("Warm-up refill requires a warm-up period");
+    };
+  }
+
+  /**
+   * Creates a leaky bucket rate limiter specialized for the given configuration.
+   *
+   * @param capacity       The maximum number of requests a user can make in a given period before being limited.
+   * @param period         The time frame in which requests are considered for limiting.
+   * @param leaksPerPeriod The number of requests that are allowed to leak out (processed) per period.
+   * @param clock          The clock used to determine the current time.
+   * @return the rate limiter.
+   */
+  public static RateLimiter leakyBucket(int capacity, Duration period, int leaksPerPeriod,
+                                        Clock clock) {
+    return new LeakyBucketRateLimiter(capacity, period, leaksPerPeriod, clock);
+  }
+
+  private static RateLimiter greedyTokenBucket(int capacity, Duration period, int tokensPerPeriod,
+                                               Clock clock) {
+    FixedPointRate refillRate = new FixedPointRate(tokensPerPeriod, period);
+    if (!refillRate.compact()) {
+      return new TokenBucketRateLimiter(capacity, period, tokensPerPeriod, clock,
+          RefillStrategy.GREEDY);
+    }
+    return new GreedyTokenBucketRateLimiter(capacity, tokensPerPeriod, clock, refillRate);
+  }
+
+  /**
+   * A token bucket rate limiter which refills tokens greedily.
+   */
+  private static final class GreedyTokenBucketRateLimiter implements RateLimiter {
+
+    private final int capacity;
+    private final int tokensPerPeriod;
+    private final Clock clock;
+    private final FixedPointRate refillRate;
+    private final long fullNanos; // Time which refills an empty bucket.
+    private final Map<String, TokenBucket> userTokenBucket = new ConcurrentHashMap<>();
+    private final LongKeyMap<TokenBucket> keyTokenBucket = new LongKeyMap<>();
+
+    GreedyTokenBucketRateLimiter(int capacity, int tokensPerPeriod, Clock clock,
+                                 FixedPointRate refillRate) {
+      this.capacity = capacity;
+      this.tokensPerPeriod = tokensPerPeriod;
+      this.clock = clock;
+      this.refillRate = refillRate;
+      this.fullNanos = refillRate.nanosUntil(capacity, 0);
+    }
+
+    @Override
+    public boolean allowed(String userId) {
+      return allowed(userId, null);
+    }
+
+    @Override
+    public boolean allowed(String userId, RateLimitDecision decision) {
+      return userTokenBucket.computeIfAbsent(userId, k -> newTokenBucket()).submit(decision) > 0;
+    }
+
+    @Override
+    public boolean allowed(long key, RateLimitDecision decision) {
+      return keyTokenBucket.computeIfAbsent(key, k -> newTokenBucket()).submit(decision) > 0;
+    }
+
+    private TokenBucket newTokenBucket() {
+      return new TokenBucket(TimeUnit.MILLISECONDS.toNanos(clock.millis()), tokensPerPeriod);
+    }
+
+    private final class TokenBucket extends FlatCombiner {
+      private long refillTimestamp; // Timestamp of the last refill in nanoseconds.
+      private long refillCarry; // Fraction of a token refilled since the last refill.
+      private long tokenCount; // Current number of tokens in the bucket.
+
+      TokenBucket(long refillTimestamp, long tokenCount) {
+        super(clock);
+        this.refillTimestamp = refillTimestamp;
+        this.tokenCount = tokenCount;
+      }
+
+      @Override
+      long apply(long now, long argument, RateLimitDecision decision) {
+        refill(now);
+
+        boolean allowed = tokenCount > 0;
+        if (allowed) {
+          tokenCount--;
+        }
+
+        if (decision != null) {
+          long resetAt = refilledAt(capacity - tokenCount);
+          decision.setNanos(allowed, tokenCount,
+              allowed ? 0 : refilledAt(1 - tokenCount) - now, resetAt - now);
+          long batch = Math.min(decision.batch(), capacity);
+          decision.setBatchRetryAfterNanos(Math.min(refilledAt(batch - tokenCount), resetAt) - now);
+        }
+        return allowed ? 1 : 0;
+      }
+
+      private long refilledAt(long tokens) {
+        return tokens <= 0 ? refillTimestamp
+            : refillTimestamp + refillRate.nanosUntil(tokens, refillCarry);
+      }
+
+      /**
+       * Refills the bucket greedily, carrying over the fraction of a token which
+       * has not been refilled yet, unless the bucket is full.
+       *
+       * @param now The current time in nanoseconds.
+       */
+      private void refill(long now) {
+        long elapsedTime = now - refillTimestamp;
+        refillTimestamp = now;
+        if (elapsedTime >= fullNanos) {
+          tokenCount = capacity;
+          refillCarry = 0;
+          return;
+        }
+
+        long availableTokens = refillRate.accrued(elapsedTime, refillCarry);
+        if (availableTokens >= capacity - tokenCount) {
+          tokenCount = capacity;
+          refillCarry = 0;
+        } else {
+          tokenCount += availableTokens;
+          refillCarry = refillRate.carry(elapsedTime, refillCarry);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.rdiachenko.ratelimiting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An asynchronous channel, such as an {@link java.nio.channels.AsynchronousSocketChannel},
+ * which limits the bandwidth of another one, taking a token per byte transferred from
+ * a {@link TokenBucketRateLimiter}. When the bucket is empty, the transfer is scheduled
+ * for when tokens are expected to be refilled, so no thread waits for them.
+ *
+ * <p>The caller's buffer is passed to the channel as is, with its limit lowered
+ * to the number of permitted bytes until the transfer completes, so direct
+ * buffers are not copied.
+ */
+public class ThrottledAsynchronousByteChannel implements AsynchronousByteChannel {
+
+  private final AsynchronousByteChannel channel;
+  private final ByteThrottle readThrottle;
+  private final ByteThrottle writeThrottle;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Constructs a ThrottledAsynchronousByteChannel which limits reads and writes
+   * separately, each taking tokens of the same key.
+   *
+   * @param channel   The channel to transfer bytes through.
+   * @param bucket    The token bucket to take a token per byte from.
+   * @param key       The key of the bucket, such as the tenant ID.
+   * @param chunkSize The number of tokens to take from the bucket at once.
+   * @param scheduler The scheduler used to resume transfers once tokens are refilled.
+   */
+  public ThrottledAsynchronousByteChannel(AsynchronousByteChannel channel,
+                                          TokenBucketRateLimiter bucket, String key,
+                                          int chunkSize, ScheduledExecutorService scheduler) {
+    this.channel = channel;
+    this.readThrottle = new ByteThrottle(bucket, key, chunkSize);
+    this.writeThrottle = new ByteThrottle(bucket, key, chunkSize);
+    this.scheduler = scheduler;
+  }
+
+  @Override
+  public <A> void read(ByteBuffer dst, A attachment,
+                       CompletionHandler<Integer, ? super A> handler) {
+    transfer(dst, true, attachment, handler);
+  }
+
+  @Override
+  public Future<Integer> read(ByteBuffer dst) {
+    CompletableFuture<Integer> future = new CompletableFuture<>();
+    read(dst, future, FutureHandler.INSTANCE);
+    return future;
+  }
+
+  @Override
+  public <A> void write(ByteBuffer src, A attachment,
+                        CompletionHandler<Integer, ? super A> handler) {
+    transfer(src, false, attachment, handler);
+  }
+
+  @Override
+  public Future<Integer> write(ByteBuffer src) {
+    CompletableFuture<Integer> future = new CompletableFuture<>();
+    write(src, future, FutureHandler.INSTANCE);
+    return future;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Starts a transfer of the permitted part of the buffer,
+   * or schedules it for later if no bytes are permitted.
+   */
+  private <A> void transfer(ByteBuffer buffer, boolean read, A attachment,
+                            CompletionHandler<Integer, ? super A> handler) {
+    if (!buffer.hasRemaining()) {
+      start(buffer, read, attachment, handler);
+      return;
+    }
+    ByteThrottle throttle = read ? readThrottle : writeThrottle;
+    long granted = throttle.tryTake(buffer.remaining());
+    if (granted <= 0) {
+      try {
+        scheduler.schedule(() -> transfer(buffer, read, attachment, handler),
+            -granted, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        handler.failed(e, attachment);
+      }
+      return;
+    }
+
+    int limit = buffer.limit();
+    buffer.limit(buffer.position() + (int) granted);
+    try {
+      start(buffer, read, attachment, permitted(buffer, limit, throttle, granted, handler));
+    } catch (RuntimeException e) {
+      buffer.limit(limit);
+      throttle.refund(granted);
+      throw e;
+    }
+  }
+
+  /**
+   * Wraps a completion handler to restore the buffer's limit and
+   * return the permits of the bytes which were not transferred.
+   */
+  private static <A> CompletionHandler<Integer, A> permitted(
+      ByteBuffer buffer, int limit, ByteThrottle throttle, long granted,
+      CompletionHandler<Integer, ? super A> handler) {
+    return new CompletionHandler<>() {
+      @Override
+      public void completed(Integer result, A attachment) {
+        buffer.limit(limit);
+        throttle.refund(granted - Math.max(result, 0));
+        handler.completed(result, attachment);
+      }
+
+      @Override
+      public void failed(Throwable exc, A attachment) {
+        buffer.limit(limit);
+        throttle.refund(granted);
+        handler.failed(exc, attachment);
+      }
+    };
+  }
+
+  private <A> void start(ByteBuffer buffer, boolean read, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+    if (read) {
+      channel.read(buffer, attachment, handler);
+    } else {
+      channel.write(buffer, attachment, handler);
+    }
+  }
+
+  /**
+   * Completes the future given as the attachment.
+   */
+  private static final class FutureHandler
+      implements CompletionHandler<Integer, CompletableFuture<Integer>> {
+    static final FutureHandler INSTANCE = new FutureHandler();
+
+    @Override
+    public void completed(Integer result, CompletableFuture<Integer> future) {
+      future.complete(result);
+    }
+
+    @Override
+    public void failed(Throwable exc, CompletableFuture<Integer> future) {
+      future.completeExceptionally(exc);
+    }
+  }
+}
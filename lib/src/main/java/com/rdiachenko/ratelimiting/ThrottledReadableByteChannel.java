@@ -0,0 +1,63 @@
+package com.rdiachenko.ratelimiting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A readable channel which limits the bandwidth of another one, taking a token
+ * per byte read from a {@link TokenBucketRateLimiter}. Reads wait for tokens by
+ * parking the thread until they are expected to be refilled.
+ *
+ * <p>The caller's buffer is passed to the channel as is, with its limit lowered
+ * to the number of permitted bytes for the duration of the read, so direct
+ * buffers are not copied.
+ */
+public class ThrottledReadableByteChannel implements ReadableByteChannel {
+
+  private final ReadableByteChannel channel;
+  private final ByteThrottle throttle;
+
+  /**
+   * Constructs a ThrottledReadableByteChannel.
+   *
+   * @param channel   The channel to read from.
+   * @param bucket    The token bucket to take a token per byte from.
+   * @param key       The key of the bucket, such as the tenant ID.
+   * @param chunkSize The number of tokens to take from the bucket at once.
+   */
+  public ThrottledReadableByteChannel(ReadableByteChannel channel, TokenBucketRateLimiter bucket,
+                                      String key, int chunkSize) {
+    this.channel = channel;
+    this.throttle = new ByteThrottle(bucket, key, chunkSize);
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (!dst.hasRemaining()) {
+      return channel.read(dst);
+    }
+    int granted = throttle.take(dst.remaining());
+
+    int limit = dst.limit();
+    int read = 0;
+    dst.limit(dst.position() + granted);
+    try {
+      read = channel.read(dst);
+    } finally {
+      dst.limit(limit);
+      throttle.refund(granted - Math.max(read, 0));
+    }
+    return read;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,64 @@
+package com.rdiachenko.ratelimiting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A writable channel which limits the bandwidth of another one, taking a token
+ * per byte written from a {@link TokenBucketRateLimiter}. Writes wait for tokens by
+ * parking the thread until they are expected to be refilled.
+ *
+ * <p>The caller's buffer is passed to the channel as is, with its limit lowered
+ * to the number of permitted bytes for the duration of the write, so direct
+ * buffers are not copied. A write may therefore write fewer bytes than remain
+ * in the buffer, as channels in non-blocking mode do.
+ */
+public class ThrottledWritableByteChannel implements WritableByteChannel {
+
+  private final WritableByteChannel channel;
+  private final ByteThrottle throttle;
+
+  /**
+   * Constructs a ThrottledWritableByteChannel.
+   *
+   * @param channel   The channel to write to.
+   * @param bucket    The token bucket to take a token per byte from.
+   * @param key       The key of the bucket, such as the tenant ID.
+   * @param chunkSize The number of tokens to take from the bucket at once.
+   */
+  public ThrottledWritableByteChannel(WritableByteChannel channel, TokenBucketRateLimiter bucket,
+                                      String key, int chunkSize) {
+    this.channel = channel;
+    this.throttle = new ByteThrottle(bucket, key, chunkSize);
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!src.hasRemaining()) {
+      return channel.write(src);
+    }
+    int granted = throttle.take(src.remaining());
+
+    int limit = src.limit();
+    int written = 0;
+    src.limit(src.position() + granted);
+    try {
+      written = channel.write(src);
+    } finally {
+      src.limit(limit);
+      throttle.refund(granted - written);
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
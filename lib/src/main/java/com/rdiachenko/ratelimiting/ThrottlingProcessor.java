@@ -0,0 +1,249 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A processor which throttles a stream of items with a rate limiter,
+ * typically a {@link TokenBucketRateLimiter} or a {@link LeakyBucketRateLimiter}.
+ *
+ * <p>Every item takes a permit of the key computed for it. Instead of buffering or
+ * dropping items which are over the limit, the processor translates permit
+ * availability into upstream demand: it asks upstream for a batch of at most as
+ * many items as there are permits left, and stops asking while the limiter rejects.
+ * At most one batch of items is ever buffered.
+ *
+ * <p>Once the limiter runs dry, the processor waits for a whole batch worth of
+ * permits to be replenished before it asks for more items, so that upstream is
+ * signaled once per batch rather than once per item. The wait is computed by the
+ * limiter from its own refill rate, see {@link RateLimitDecision#batchRetryAfterNanos()},
+ * and never lasts past the limiter's reset time, so no permits are wasted. Items keep
+ * their order, which means that an item over the limit of its key holds back the items
+ * behind it, and the permits left are those of the key of the last item.
+ *
+ * @param <T> The type of items.
+ */
+public class ThrottlingProcessor<T> implements Flow.Processor<T, T> {
+
+  private final RateLimiter limiter;
+  private final Function<? super T, String> keyFunction;
+  private final int batchSize;
+  private final ScheduledExecutorService scheduler;
+
+  private final Queue<T> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicLong demand = new AtomicLong();
+  private final AtomicInteger wip = new AtomicInteger();
+  private volatile Flow.Subscription upstream;
+  private volatile Flow.Subscriber<? super T> downstream;
+  private volatile boolean upstreamDone;
+  private volatile Throwable error;
+  private volatile boolean cancelled;
+  private volatile boolean waiting;
+
+  // Accessed only while draining, which is serialized by wip.
+  private final RateLimitDecision decision = new RateLimitDecision();
+  private long permits; // Permits expected to be available for the next batch.
+  private long inFlight; // Items requested from upstream but not emitted yet.
+  private boolean terminated;
+
+  /**
+   * Constructs a ThrottlingProcessor which limits all items under one key.
+   *
+   * @param limiter   The rate limiter to take permits from.
+   * @param key       The key to take permits of.
+   * @param batchSize The maximum number of items to request from upstream at once,
+   *                  usually the number of permits replenished per period.
+   * @param scheduler The scheduler used to resume once permits are replenished.
+   */
+  public ThrottlingProcessor(RateLimiter limiter, String key, int batchSize,
+                             ScheduledExecutorService scheduler) {
+    this(limiter, item -> key, batchSize, scheduler);
+  }
+
+  /**
+   * Constructs a ThrottlingProcessor which limits items per key.
+   *
+   * @param limiter     The rate limiter to take permits from.
+   * @param keyFunction The function computing the key to take a permit of for an item.
+   * @param batchSize   The maximum number of items to request from upstream at once,
+   *                    usually the number of permits replenished per period.
+   * @param scheduler   The scheduler used to resume once permits are replenished.
+   */
+  public ThrottlingProcessor(RateLimiter limiter, Function<? super T, String> keyFunction,
+                             int batchSize, ScheduledExecutorService scheduler) {
+    this.limiter = limiter;
+    this.keyFunction = keyFunction;
+    this.batchSize = Math.max(1, batchSize);
+    this.scheduler = scheduler;
+    this.permits = this.batchSize;
+    decision.batch(this.batchSize);
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    if (downstream != null) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+      return;
+    }
+    downstream = subscriber;
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        if (n <= 0) {
+          onError(new IllegalArgumentException("Non-positive request: " + n));
+          cancelUpstream();
+          return;
+        }
+        demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+        drain();
+      }
+
+      @Override
+      public void cancel() {
+        cancelled = true;
+        cancelUpstream();
+        drain();
+      }
+    });
+    drain();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    if (upstream != null) {
+      subscription.cancel();
+      return;
+    }
+    upstream = subscription;
+    if (cancelled) {
+      subscription.cancel();
+    }
+    drain();
+  }
+
+  @Override
+  public void onNext(T item) {
+    pending.offer(item);
+    drain();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    error = throwable;
+    upstreamDone = true;
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    upstreamDone = true;
+    drain();
+  }
+
+  private void cancelUpstream() {
+    Flow.Subscription subscription = upstream;
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+  /**
+   * Runs the drain loop on the current thread, unless another thread is already
+   * running it, in which case that thread runs it once more.
+   */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      drainLoop();
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void drainLoop() {
+    Flow.Subscriber<? super T> subscriber = downstream;
+    if (cancelled || terminated) {
+      pending.clear();
+      return;
+    }
+    if (subscriber == null) {
+      return;
+    }
+
+    // Emit buffered items while downstream wants them and the limiter allows them.
+    boolean emitted = false;
+    while (!waiting && demand.get() > 0 && !pending.isEmpty()) {
+      T item = pending.peek();
+      if (limiter.allowed(keyFunction.apply(item), decision)) {
+        pending.poll();
+        permits = decision.remaining();
+        --inFlight;
+        demand.decrementAndGet();
+        emitted = true;
+        subscriber.onNext(item);
+      } else {
+        waitForPermits();
+        return;
+      }
+    }
+
+    if (upstreamDone && pending.isEmpty()) {
+      terminated = true;
+      Throwable throwable = error;
+      if (throwable != null) {
+        subscriber.onError(throwable);
+      } else {
+        subscriber.onComplete();
+      }
+      return;
+    }
+
+    // Ask for the next batch once the previous one has been emitted, or wait for
+    // one if the item just emitted took the last permit. The permits left after
+    // an earlier decision may have been replenished since, so they are probed
+    // with a single item instead.
+    Flow.Subscription subscription = upstream;
+    if (!waiting && !upstreamDone && subscription != null && inFlight <= 0
+        && demand.get() > 0) {
+      if (permits <= 0 && emitted) {
+        waitForPermits();
+        return;
+      }
+      long batch = Math.min(demand.get(), Math.min(batchSize, Math.max(1, permits)));
+      inFlight = batch;
+      subscription.request(batch);
+    }
+  }
+
+  /**
+   * Stops emitting and asking for items until a batch worth of permits
+   * is replenished, but no longer than until the limiter is reset.
+   */
+  private void waitForPermits() {
+    long delay = Math.max(decision.retryAfterNanos(), decision.batchRetryAfterNanos());
+
+    waiting = true;
+    permits = batchSize;
+    scheduler.schedule(() -> {
+      waiting = false;
+      drain();
+    }, delay, TimeUnit.NANOSECONDS);
+  }
+}
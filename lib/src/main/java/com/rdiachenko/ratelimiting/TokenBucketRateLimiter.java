@@ -2,17 +2,53 @@ package com.rdiachenko.ratelimiting;
 
 import java.time.Clock;
 import java.time.Duration;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-public class TokenBucketRateLimiter {
+/**
+ * A thread safe token bucket rate limiter. Requests for the same user are
+ * serialized on the user's bucket, and buckets of users which receive many
+ * concurrent requests switch to flat combining, see {@link FlatCombiner}.
+ *
+ * <p>Tokens are accounted for with nanosecond resolution and exact fixed-point
+ * math, see {@link FixedPointRate}, so that high rates and sub-millisecond periods
+ * are enforced without drift.
+ *
+ * <p>A bucket can serve several priority classes, 0 being the highest. Each class has
+ * a reserve: the number of tokens its requests must leave in the bucket, so that
+ * under overload lower classes are rejected first while higher classes can still
+ * use the reserved tokens. The class is checked in the same update of the bucket
+ * as the refill and the consumption, so it costs no extra synchronization.
+ *
+ * <p>With the {@link RefillStrategy#WARMUP} strategy, a new bucket and a bucket which
+ * has been idle for the warm-up period start cold: they hold no more than the cold
+ * number of tokens per period, and the refill rate ramps linearly from the cold rate
+ * to the stable rate over the warm-up period, protecting cold downstream services
+ * after a restart or a scale-out.
+ *
+ * <p>The buckets of users can be exported as snapshots and restored into another
+ * limiter, see {@link TransferableRateLimiter}. A bucket restored with the warm-up
+ * strategy warms up again from the time of its snapshot.
+ */
+public class TokenBucketRateLimiter implements TransferableRateLimiter {
 
   private final int capacity;
   private final Duration period;
   private final int tokensPerPeriod;
   private final Clock clock;
   private final RefillStrategy refillStrategy;
-  private final Map<String, TokenBucket> userTokenBucket = new HashMap<>();
+  private final long periodNanos;
+  private final Divisor periodDivisor;
+  private final FixedPointRate refillRate;
+  private final int[] priorityReserves;
+  private final long warmupNanos;
+  private final int coldTokensPerPeriod;
+  private final WarmupRamp warmupRamp; // Null unless refilled with the warm-up strategy.
+  private final Map<String, TokenBucket> userTokenBucket = new ConcurrentHashMap<>();
+  private final LongKeyMap<TokenBucket> keyTokenBucket = new LongKeyMap<>();
 
   /**
    * Constructs a TokenBucketRateLimiter with the specified parameters.
@@ -22,14 +58,80 @@ public class TokenBucketRateLimiter {
    * @param tokensPerPeriod The number of tokens added to the bucket each period.
    * @param clock           The clock instance to use for timing.
    * @param refillStrategy  The strategy for refilling the bucket with tokens.
+   * @throws IllegalArgumentException if the number of tokens per period is not positive.
    */
   public TokenBucketRateLimiter(int capacity, Duration period, int tokensPerPeriod,
                          Clock clock, RefillStrategy refillStrategy) {
+    this(capacity, period, tokensPerPeriod, clock, refillStrategy, new int[] {0});
+  }
+
+  /**
+   * Constructs a TokenBucketRateLimiter with the specified parameters and priority classes.
+   *
+   * @param capacity         The maximum number of tokens that the bucket can hold.
+   * @param period           The period over which tokens are replenished.
+   * @param tokensPerPeriod  The number of tokens added to the bucket each period.
+   * @param clock            The clock instance to use for timing.
+   * @param refillStrategy   The strategy for refilling the bucket with tokens.
+   * @param priorityReserves The number of tokens requests of each priority class must
+   *                         leave in the bucket, by class, starting with the highest one,
+   *                         whose reserve is 0 so that it can use the whole bucket.
+   * @throws IllegalArgumentException if the number of tokens per period is not positive,
+   *                                  or the reserves do not start with 0, decrease from
+   *                                  a class to the next one, or reach the capacity.
+   */
+  public TokenBucketRateLimiter(int capacity, Duration period, int tokensPerPeriod,
+                         Clock clock, RefillStrategy refillStrategy, int[] priorityReserves) {
+    this(capacity, period, tokensPerPeriod, clock, refillStrategy, priorityReserves,
+        Duration.ZERO, tokensPerPeriod);
+    if (refillStrategy == RefillStrategy.WARMUP) {
+      throw new IllegalArgumentException("Warm-up refill requires a warm-up period");
+    }
+  }
+
+  /**
+   * Constructs a TokenBucketRateLimiter which refills tokens with the warm-up strategy.
+   *
+   * @param capacity            The maximum number of tokens that the bucket can hold.
+   * @param period              The period over which tokens are replenished.
+   * @param tokensPerPeriod     The number of tokens added to the bucket each period
+   *                            once it is warmed up.
+   * @param clock               The clock instance to use for timing.
+   * @param warmupPeriod        The time it takes a cold bucket to warm up, which is also
+   *                            the idle time after which a bucket turns cold again.
+   * @param coldTokensPerPeriod The number of tokens added to a cold bucket each period,
+   *                            and the maximum number of tokens it starts with.
+   * @throws IllegalArgumentException if the number of tokens per period is not positive.
+   */
+  public TokenBucketRateLimiter(int capacity, Duration period, int tokensPerPeriod,
+                         Clock clock, Duration warmupPeriod, int coldTokensPerPeriod) {
+    this(capacity, period, tokensPerPeriod, clock, RefillStrategy.WARMUP, new int[] {0},
+        warmupPeriod, coldTokensPerPeriod);
+    if (warmupNanos <= 0) {
+      throw new IllegalArgumentException("Warm-up period must be positive: " + warmupPeriod);
+    }
+  }
+
+  private TokenBucketRateLimiter(int capacity, Duration period, int tokensPerPeriod,
+                                 Clock clock, RefillStrategy refillStrategy, int[] priorityReserves,
+                                 Duration warmupPeriod, int coldTokensPerPeriod) {
+    if (tokensPerPeriod <= 0) {
+      throw new IllegalArgumentException("Tokens per period must be positive: " + tokensPerPeriod);
+    }
     this.capacity = capacity;
     this.period = period;
     this.tokensPerPeriod = tokensPerPeriod;
     this.clock = clock;
     this.refillStrategy = refillStrategy;
+    this.periodNanos = period.toNanos();
+    this.periodDivisor = new Divisor(periodNanos);
+    this.refillRate = new FixedPointRate(tokensPerPeriod, period);
+    this.priorityReserves = priorityReserves.clone();
+    validate(this.priorityReserves, capacity);
+    this.warmupNanos = warmupPeriod.toNanos();
+    this.coldTokensPerPeriod = coldTokensPerPeriod;
+    this.warmupRamp = refillStrategy == RefillStrategy.WARMUP && warmupNanos > 0
+        ? new WarmupRamp(coldTokensPerPeriod, tokensPerPeriod, period, warmupPeriod) : null;
   }
 
   /**
@@ -39,42 +141,288 @@ public class TokenBucketRateLimiter {
    * @param userId The ID of the user making the request.
    * @return true if the request is allowed, false otherwise.
    */
+  @Override
   public boolean allowed(String userId) {
+    return allowed(userId, null);
+  }
+
+  /**
+   * Determines if a request from the specified user ID
+   * is allowed based on the current state of their token bucket,
+   * and describes the state of the bucket in the given decision.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(String userId, RateLimitDecision decision) {
+    return allowed(userId, 0, decision);
+  }
+
+  /**
+   * Determines if a request of the given priority class from the specified user ID
+   * is allowed based on the current state of their token bucket.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param priority The priority class of the request, 0 being the highest.
+   * @return true if the request is allowed, false otherwise.
+   * @throws IllegalArgumentException if the priority class is not configured.
+   */
+  public boolean allowed(String userId, int priority) {
+    return allowed(userId, priority, null);
+  }
+
+  /**
+   * Determines if a request of the given priority class from the specified user ID
+   * is allowed based on the current state of their token bucket,
+   * and describes the state of the bucket in the given decision.
+   * The remaining tokens and the retry time are those of the priority class.
+   *
+   * @param userId   The ID of the user making the request.
+   * @param priority The priority class of the request, 0 being the highest.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   * @throws IllegalArgumentException if the priority class is not configured.
+   */
+  public boolean allowed(String userId, int priority, RateLimitDecision decision) {
+    return acquire(userId, priority, 1, decision) > 0;
+  }
+
+  /**
+   * Takes as many of the given number of tokens as are available from the bucket
+   * of the specified user ID, and describes the state of the bucket in the given
+   * decision. This lets bulk consumers, such as byte transfers, take permits in
+   * chunks instead of one by one.
+   *
+   * @param userId    The ID of the user making the request.
+   * @param maxTokens The maximum number of tokens to take.
+   * @param decision  The holder to write the details of the decision into, or null.
+   * @return the number of tokens taken, 0 if the bucket is empty.
+   * @throws IllegalArgumentException if the maximum number of tokens is not positive.
+   */
+  public int acquire(String userId, int maxTokens, RateLimitDecision decision) {
+    return acquire(userId, 0, maxTokens, decision);
+  }
+
+  /**
+   * Determines if a request from the specified numeric key
+   * is allowed based on the current state of its token bucket,
+   * and describes the state of the bucket in the given decision.
+   *
+   * @param key      The numeric key of the user making the request.
+   * @param decision The holder to write the details of the decision into, or null.
+   * @return true if the request is allowed, false otherwise.
+   */
+  @Override
+  public boolean allowed(long key, RateLimitDecision decision) {
+    return acquire(keyTokenBucket.computeIfAbsent(key, k -> newTokenBucket()), 0, 1, decision) > 0;
+  }
+
+  /**
+   * Exports the state of the token buckets of all users and numeric keys.
+   *
+   * @return a snapshot per user or key.
+   */
+  @Override
+  public List<BucketSnapshot> snapshots() {
+    List<BucketSnapshot> snapshots = new ArrayList<>();
+    userTokenBucket.forEach((userId, bucket) -> bucket.exclusively(
+        () -> snapshots.add(bucket.snapshot(userId, 0))));
+    keyTokenBucket.forEach((key, bucket) -> bucket.exclusively(
+        () -> snapshots.add(bucket.snapshot(null, key))));
+    return snapshots;
+  }
+
+  /**
+   * Imports the state of the token bucket of a user or a numeric key, keeping the
+   * bucket with fewer tokens if there already is one. A snapshot taken later than
+   * the current time of this limiter's clock is treated as taken now.
+   *
+   * @param snapshot The snapshot to import.
+   */
+  @Override
+  public void restore(BucketSnapshot snapshot) {
+    long now = TimeUnit.MILLISECONDS.toNanos(clock.millis());
+    TokenBucket restored = new TokenBucket(Math.min(snapshot.timestamp(), now), snapshot.level());
+    restored.refillCarry = snapshot.carry();
+
+    TokenBucket bucket = snapshot.userId() != null
+        ? userTokenBucket.computeIfAbsent(snapshot.userId(), k -> restored)
+        : keyTokenBucket.computeIfAbsent(snapshot.key(), k -> restored);
+    if (bucket != restored) {
+      bucket.exclusively(() -> bucket.merge(restored));
+    }
+  }
+
+  private int acquire(String userId, int priority, int maxTokens, RateLimitDecision decision) {
     // Initialize an empty bucket for new users or retrieve existing one.
-    TokenBucket bucket = userTokenBucket.computeIfAbsent(userId,
-        k -> new TokenBucket(clock.millis(), tokensPerPeriod));
+    return acquire(userTokenBucket.computeIfAbsent(userId, k -> newTokenBucket()),
+        priority, maxTokens, decision);
+  }
 
-    // Refill the bucket with available tokens based on
-    // elapsed time since last refill.
-    bucket.refill();
+  private int acquire(TokenBucket bucket, int priority, int maxTokens, RateLimitDecision decision) {
+    if (priority < 0 || priority >= priorityReserves.length) {
+      throw new IllegalArgumentException("Unsupported priority class: " + priority);
+    }
+    if (maxTokens <= 0) {
+      throw new IllegalArgumentException("Maximum number of tokens must be positive: " + maxTokens);
+    }
 
-    // Allow this request if a token was available and consumed,
-    // Otherwise, reject the request.
-    return bucket.consume();
+    // Pass both the priority class and the number of tokens as the request's argument.
+    return (int) bucket.submit((long) priority << Integer.SIZE | maxTokens, decision);
   }
 
-  private class TokenBucket {
-    private long refillTimestamp; // Timestamp of the last refill.
+  /**
+   * Checks that every class can use the tokens of the classes below it,
+   * and that the lowest class can still use some tokens.
+   */
+  private static void validate(int[] priorityReserves, int capacity) {
+    if (priorityReserves.length == 0 || priorityReserves[0] != 0) {
+      throw new IllegalArgumentException("Reserve of the highest priority class must be 0");
+    }
+    for (int priority = 1; priority < priorityReserves.length; priority++) {
+      int reserve = priorityReserves[priority];
+      if (reserve < priorityReserves[priority - 1] || reserve >= capacity) {
+        throw new IllegalArgumentException("Reserve of priority class " + priority
+            + " must be between the reserve of the class above and the capacity: " + reserve);
+      }
+    }
+  }
+
+  private TokenBucket newTokenBucket() {
+    return new TokenBucket(TimeUnit.MILLISECONDS.toNanos(clock.millis()),
+        refillStrategy == RefillStrategy.WARMUP ? coldTokensPerPeriod : tokensPerPeriod);
+  }
+
+  private class TokenBucket extends FlatCombiner {
+    private long refillTimestamp; // Timestamp of the last refill in nanoseconds.
+    private long refillCarry; // Fraction of a token refilled since the last refill.
     private long tokenCount; // Current number of tokens in the bucket.
+    private boolean warmingUp; // Whether the bucket is warming up.
+    private long warmupTimestamp; // Timestamp of the start of the warm-up in nanoseconds.
+    private long warmupRefilled; // Number of tokens refilled since the start of the warm-up.
+    private long warmupNextAt; // Timestamp at which the next warm-up token is refilled.
 
     /**
      * Constructs a TokenBucket with the specified initial state.
      *
-     * @param refillTimestamp The timestamp of the last refill.
+     * @param refillTimestamp The timestamp of the last refill in nanoseconds.
      * @param tokenCount      The initial number of tokens in the bucket.
      */
     TokenBucket(long refillTimestamp, long tokenCount) {
+      super(clock);
       this.refillTimestamp = refillTimestamp;
       this.tokenCount = tokenCount;
+      this.warmingUp = refillStrategy == RefillStrategy.WARMUP;
+      this.warmupTimestamp = refillTimestamp;
+      if (warmingUp) {
+        this.warmupNextAt = refillTimestamp + warmupRamp.firstTokenNanos();
+      }
+    }
+
+    @Override
+    long apply(long now, long argument, RateLimitDecision decision) {
+      int priority = (int) (argument >>> Integer.SIZE);
+      int maxTokens = (int) argument;
+
+      // Refill the bucket with available tokens based on
+      // elapsed time since last refill.
+      refill(now);
+
+      // Allow this request if tokens above the reserve of its class
+      // were available and consumed, Otherwise, reject the request.
+      int reserve = priorityReserves[priority];
+      long consumed = consume(reserve, maxTokens);
+      boolean allowed = consumed > 0;
+
+      if (decision != null) {
+        long resetAt = refilledAt(capacity - tokenCount);
+        decision.setNanos(allowed, Math.max(0, tokenCount - reserve),
+            allowed ? 0 : refilledAt(reserve + 1 - tokenCount) - now, resetAt - now);
+        // A batch larger than the capacity is never available, so wait for the reset.
+        long batch = Math.min(decision.batch(), capacity);
+        decision.setBatchRetryAfterNanos(
+            Math.min(refilledAt(reserve + batch - tokenCount), resetAt) - now);
+      }
+      return consumed;
+    }
+
+    /**
+     * Exports the state of the bucket. Must be called with exclusive access to it.
+     *
+     * @param userId The ID of the user the bucket belongs to, or null.
+     * @param key    The numeric key the bucket belongs to, if the user ID is null.
+     * @return the snapshot.
+     */
+    BucketSnapshot snapshot(String userId, long key) {
+      return new BucketSnapshot(userId, key, tokenCount, refillCarry, refillTimestamp);
+    }
+
+    /**
+     * Merges the state of another bucket of the same user into this one. Both are
+     * refilled up to the later of their timestamps, and the one with fewer tokens wins.
+     *
+     * @param other The bucket to merge, which is not shared with other threads.
+     */
+    void merge(TokenBucket other) {
+      long timestamp = Math.max(refillTimestamp, other.refillTimestamp);
+      refill(timestamp);
+      other.refill(timestamp);
+      if (other.tokenCount < tokenCount
+          || other.tokenCount == tokenCount && other.refillCarry < refillCarry) {
+        tokenCount = other.tokenCount;
+        refillCarry = other.refillCarry;
+        refillTimestamp = other.refillTimestamp;
+      }
+    }
+
+    /**
+     * Calculates the time at which the given number of tokens
+     * will have been added to the bucket since the last refill.
+     *
+     * @param tokens The number of tokens to add.
+     * @return the time at which the tokens are available.
+     */
+    private long refilledAt(long tokens) {
+      if (tokens <= 0) {
+        return refillTimestamp;
+      }
+      return switch (refillStrategy) {
+        case GREEDY -> refillTimestamp + refillRate.nanosUntil(tokens, refillCarry);
+        case INTERVALLY -> refillTimestamp + Math.ceilDiv(tokens, tokensPerPeriod) * periodNanos;
+        case WARMUP -> warmingUp
+            ? warmupTimestamp + warmedUpIn(warmupRefilled + tokens)
+            : refillTimestamp + refillRate.nanosUntil(tokens, refillCarry);
+      };
+    }
+
+    /**
+     * Calculates the time since the start of the warm-up
+     * at which the given number of tokens will have been refilled.
+     *
+     * @param tokens The number of tokens refilled since the start of the warm-up.
+     * @return the time in nanoseconds.
+     */
+    private long warmedUpIn(long tokens) {
+      long warmupTokens = warmupRamp.warmupTokens();
+      if (tokens > warmupTokens) {
+        // The stable rate starts from the end of the warm-up without a carry.
+        return warmupNanos + refillRate.nanosUntil(tokens - warmupTokens, 0);
+      }
+      return warmupRamp.nanosUntil(tokens);
     }
 
     /**
      * Refills the token bucket according to the specified refill strategy.
+     *
+     * @param now The current time in nanoseconds.
      */
-    void refill() {
+    void refill(long now) {
       switch (refillStrategy) {
-        case GREEDY -> refillGreedy();
-        case INTERVALLY -> refillIntervally();
+        case GREEDY -> refillGreedy(now);
+        case INTERVALLY -> refillIntervally(now);
+        case WARMUP -> refillWarmup(now);
         default -> throw new IllegalStateException("Unsupported refill strategy: "
             + refillStrategy);
       }
@@ -85,42 +433,101 @@ public class TokenBucketRateLimiter {
      * to add tokens to the bucket as soon as possible without waiting for
      * the entire period to elapse. For example, a configuration of
      * "2 tokens per 1 second" would add 1 token every 500 milliseconds.
+     * The fraction of a token which has not been refilled yet is carried over
+     * to the next refill, unless the bucket is full.
+     *
+     * @param now The current time in nanoseconds.
      */
-    private void refillGreedy() {
-      long now = clock.millis();
+    private void refillGreedy(long now) {
       long elapsedTime = now - refillTimestamp;
-      long availableTokens = elapsedTime * tokensPerPeriod / period.toMillis();
+      long availableTokens = refillRate.accrued(elapsedTime, refillCarry);
 
-      tokenCount = Math.min(tokenCount + availableTokens, capacity);
-      refillTimestamp += availableTokens * period.toMillis() / tokensPerPeriod;
+      if (availableTokens >= capacity - tokenCount) {
+        tokenCount = capacity;
+        refillCarry = 0;
+      } else {
+        tokenCount += availableTokens;
+        refillCarry = refillRate.carry(elapsedTime, refillCarry);
+      }
+      refillTimestamp = now;
     }
 
     /**
      * Regenerates tokens at fixed intervals. Unlike the greedy strategy,
      * this method waits for the entire period to elapse before
      * regenerating the full amount of tokens designated for that period.
+     *
+     * @param now The current time in nanoseconds.
      */
-    private void refillIntervally() {
-      long now = clock.millis();
+    private void refillIntervally(long now) {
       long elapsedTime = now - refillTimestamp;
-      long elapsedPeriods = elapsedTime / period.toMillis();
-      long availableTokens = elapsedPeriods * tokensPerPeriod;
+      long elapsedPeriods = periodDivisor.quotient(elapsedTime);
+      // More periods than the capacity would overfill the bucket anyway.
+      long availableTokens = Math.min(elapsedPeriods, capacity) * tokensPerPeriod;
 
       tokenCount = Math.min(tokenCount + availableTokens, capacity);
-      refillTimestamp += elapsedPeriods * period.toMillis();
+      refillTimestamp += elapsedPeriods * periodNanos;
+    }
+
+    /**
+     * Regenerates tokens at a rate which grows linearly from the cold rate
+     * to the stable rate over the warm-up period, and then greedily at the
+     * stable rate. The tokens refilled during the warm-up are computed exactly
+     * from its start, so rounding does not add up over requests, and only once
+     * the next token is due. A bucket idle for the warm-up period keeps at most
+     * the cold number of tokens per period and warms up again.
+     *
+     * @param now The current time in nanoseconds.
+     */
+    private void refillWarmup(long now) {
+      boolean idle = now - refillTimestamp >= warmupNanos;
+
+      if (warmingUp) {
+        long elapsedTime = Math.min(now - warmupTimestamp, warmupNanos);
+        if (now >= warmupNextAt) {
+          long refilled = warmupRamp.tokens(elapsedTime);
+
+          tokenCount = Math.min(tokenCount + refilled - warmupRefilled, capacity);
+          warmupRefilled = refilled;
+          warmupNextAt = warmupTimestamp + warmupRamp.nanosUntil(refilled + 1);
+        }
+        if (elapsedTime < warmupNanos) {
+          refillTimestamp = now;
+        } else {
+          // Warmed up, continue at the stable rate from the end of the warm-up.
+          warmingUp = false;
+          refillTimestamp = warmupTimestamp + warmupNanos;
+          refillCarry = 0;
+        }
+      }
+      if (!warmingUp) {
+        refillGreedy(now);
+      }
+
+      if (idle) {
+        warmingUp = true;
+        warmupTimestamp = now;
+        warmupRefilled = 0;
+        warmupNextAt = now + warmupRamp.firstTokenNanos();
+        tokenCount = Math.min(tokenCount, coldTokensPerPeriod);
+      }
     }
 
     /**
-     * Consumes a single token from the bucket, if available.
+     * Consumes up to the given number of tokens from the bucket,
+     * as many as are available above the reserve.
      *
-     * @return true if a token was consumed, false otherwise.
+     * @param reserve   The number of tokens which must be left in the bucket.
+     * @param maxTokens The maximum number of tokens to consume.
+     * @return the number of consumed tokens.
      */
-    boolean consume() {
-      if (tokenCount > 0) {
-        --tokenCount;
-        return true;
+    long consume(int reserve, int maxTokens) {
+      if (tokenCount > reserve) {
+        long consumed = Math.min(tokenCount - reserve, maxTokens);
+        tokenCount -= consumed;
+        return consumed;
       } else {
-        return false;
+        return 0;
       }
     }
   }
@@ -129,6 +536,6 @@ public class TokenBucketRateLimiter {
    * Defines the strategies available for refilling tokens in the bucket.
    */
   public enum RefillStrategy {
-    GREEDY, INTERVALLY
+    GREEDY, INTERVALLY, WARMUP
   }
 }
@@ -0,0 +1,273 @@
+package com.rdiachenko.ratelimiting;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Replays a recorded traffic trace against rate limiter configurations,
+ * to see how a change of limits would have treated real traffic.
+ *
+ * <p>A trace is a binary file of fixed size big-endian records, sorted by timestamp:
+ * <pre>
+ *   long timestamp // Epoch milliseconds of the requests.
+ *   long key       // Numeric ID of the user making the requests.
+ *   int  permits   // Number of requests made at that time.
+ * </pre>
+ * The trace is read through memory mapping, so traces larger than memory are fine.
+ *
+ * <p>Each configuration is replayed separately, in a single pass over the trace.
+ * Keys are sharded across a fork-join pool: the pass routes every record into a
+ * batch of its shard, and the batches of a shard run one after another in the pool,
+ * so a shard only ever sees its own records. The number of batches waiting to run
+ * is bounded per shard, which keeps memory bounded when a shard falls behind the pass.
+ *
+ * <p>Every shard creates its own limiter from the configuration, driven by its own
+ * clock which is set to the timestamp of each record before the limiter decides.
+ * Since the limiters only read the injected clock, the replay is deterministic
+ * and independent of how fast it runs.
+ */
+public class TraceReplay {
+
+  /**
+   * The size of a trace record in bytes.
+   */
+  public static final int RECORD_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+  // Mapped regions are limited to 2 GB, and must not split records.
+  private static final long REGION_SIZE = Integer.MAX_VALUE / RECORD_SIZE * RECORD_SIZE;
+  // The number of records a shard is handed at once.
+  private static final int BATCH_SIZE = 4096;
+  // The number of batches per shard which may wait to run before the pass blocks.
+  private static final int BATCHES_IN_FLIGHT = 4;
+
+  private final Map<String, Function<Clock, RateLimiter>> configurations;
+  private final ForkJoinPool pool;
+  private final int shards;
+
+  /**
+   * Constructs a TraceReplay.
+   *
+   * @param configurations The rate limiter configurations to replay the trace against,
+   *                       each creating a limiter which uses the given clock, by name.
+   * @param pool           The pool to run the shards in.
+   * @param shards         The number of shards to split the keys into.
+   */
+  public TraceReplay(Map<String, Function<Clock, RateLimiter>> configurations,
+                     ForkJoinPool pool, int shards) {
+    this.configurations = configurations;
+    this.pool = pool;
+    this.shards = shards;
+  }
+
+  /**
+   * Replays the trace against every configuration.
+   *
+   * @param trace The path of the trace file.
+   * @return the report of each configuration, by name.
+   * @throws IOException if the trace cannot be read.
+   */
+  public Map<String, Report> replay(Path trace) throws IOException {
+    try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+      List<MappedByteBuffer> regions = new ArrayList<>();
+      long size = channel.size() / RECORD_SIZE * RECORD_SIZE;
+      for (long position = 0; position < size; position += REGION_SIZE) {
+        regions.add(channel.map(FileChannel.MapMode.READ_ONLY, position,
+            Math.min(REGION_SIZE, size - position)));
+      }
+
+      Map<String, Report> reports = new LinkedHashMap<>();
+      for (Map.Entry<String, Function<Clock, RateLimiter>> configuration : configurations.entrySet()) {
+        reports.put(configuration.getKey(), replay(regions, configuration.getValue()));
+      }
+      return reports;
+    }
+  }
+
+  private Report replay(List<MappedByteBuffer> regions, Function<Clock, RateLimiter> configuration)
+      throws IOException {
+    ShardReplay[] replays = new ShardReplay[shards];
+    Batch[] batches = new Batch[shards];
+    CompletableFuture<?>[] tails = new CompletableFuture<?>[shards];
+    for (int shard = 0; shard < shards; shard++) {
+      replays[shard] = new ShardReplay(configuration);
+      batches[shard] = new Batch();
+      tails[shard] = CompletableFuture.completedFuture(null);
+    }
+
+    long start = System.nanoTime();
+    try {
+      for (MappedByteBuffer region : regions) {
+        for (int position = 0; position < region.limit(); position += RECORD_SIZE) {
+          long key = region.getLong(position + Long.BYTES);
+          int shard = shard(key);
+          Batch batch = batches[shard];
+          batch.add(region.getLong(position), key, region.getInt(position + 2 * Long.BYTES));
+          if (batch.size == BATCH_SIZE) {
+            tails[shard] = submit(tails[shard], replays[shard], batch);
+            batches[shard] = new Batch();
+          }
+        }
+      }
+      for (int shard = 0; shard < shards; shard++) {
+        if (batches[shard].size > 0) {
+          tails[shard] = submit(tails[shard], replays[shard], batches[shard]);
+        }
+      }
+      CompletableFuture.allOf(tails).get();
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to replay the trace", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while replaying the trace", e);
+    }
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+    Map<Long, KeyStats> keys = new HashMap<>();
+    long[] totals = new long[2]; // Admitted and rejected requests.
+    for (ShardReplay replay : replays) {
+      replay.keys.forEach((key, counts) -> {
+        keys.put(key, new KeyStats(counts[0], counts[1]));
+        totals[0] += counts[0];
+        totals[1] += counts[1];
+      });
+    }
+
+    return new Report(totals[0], totals[1], Collections.unmodifiableMap(keys), elapsed);
+  }
+
+  /**
+   * Schedules a batch to run in the pool after the previous batches of its shard,
+   * waiting while too many batches of the shard are in flight. Once a batch of the shard has
+   * failed, the following ones are not scheduled.
+   *
+   * @return the completion of the batch, the new tail of the shard.
+   */
+  private CompletableFuture<?> submit(CompletableFuture<?> tail, ShardReplay replay, Batch batch)
+      throws InterruptedException {
+    if (tail.isCompletedExceptionally()) {
+      return tail;
+    }
+    replay.inFlight.acquire();
+    CompletableFuture<?> next = tail.thenRunAsync(() -> replay.replay(batch), pool);
+    next.whenComplete((result, failure) -> replay.inFlight.release());
+    return next;
+  }
+
+  private int shard(long key) {
+    return Math.floorMod(Long.hashCode(key * 0x9E3779B97F4A7C15L), shards);
+  }
+
+  /**
+   * The outcome of replaying a trace against one configuration.
+   *
+   * @param admitted The number of admitted requests.
+   * @param rejected The number of rejected requests.
+   * @param keys     The admitted and rejected requests, by key.
+   * @param elapsed  The wall-clock time the replay took.
+   */
+  public record Report(long admitted, long rejected, Map<Long, KeyStats> keys, Duration elapsed) {
+
+    /**
+     * Returns the share of admitted requests.
+     *
+     * @return the admit ratio between 0 and 1.
+     */
+    public double admitRatio() {
+      long decisions = admitted + rejected;
+      return decisions == 0 ? 0 : (double) admitted / decisions;
+    }
+
+    /**
+     * Returns the throughput of the limiters during the replay, including reading the trace.
+     *
+     * @return the number of decisions made per second.
+     */
+    public double decisionsPerSecond() {
+      return (admitted + rejected) / Math.max(1e-9, elapsed.toNanos() / 1e9);
+    }
+  }
+
+  /**
+   * The outcome of replaying a trace for one key.
+   *
+   * @param admitted The number of admitted requests.
+   * @param rejected The number of rejected requests.
+   */
+  public record KeyStats(long admitted, long rejected) {
+
+    /**
+     * Returns the share of admitted requests.
+     *
+     * @return the admit ratio between 0 and 1.
+     */
+    public double admitRatio() {
+      long decisions = admitted + rejected;
+      return decisions == 0 ? 0 : (double) admitted / decisions;
+    }
+  }
+
+  /**
+   * Records of one shard, copied out of the trace.
+   */
+  private static final class Batch {
+    final long[] timestamps = new long[BATCH_SIZE];
+    final long[] keys = new long[BATCH_SIZE];
+    final int[] permits = new int[BATCH_SIZE];
+    int size;
+
+    void add(long timestamp, long key, int permits) {
+      this.timestamps[size] = timestamp;
+      this.keys[size] = key;
+      this.permits[size] = permits;
+      size++;
+    }
+  }
+
+  /**
+   * The limiter of one shard, its counts and its batches in flight. Batches of a shard
+   * run one after another, each after the previous one has completed, so the state
+   * needs no locking.
+   */
+  private static final class ShardReplay {
+    private final PinnedClock clock = new PinnedClock(ZoneOffset.UTC);
+    private final RateLimiter limiter;
+    private final LongKeyMap<long[]> keys = new LongKeyMap<>();
+    private final Semaphore inFlight = new Semaphore(BATCHES_IN_FLIGHT);
+
+    ShardReplay(Function<Clock, RateLimiter> configuration) {
+      this.limiter = configuration.apply(clock);
+    }
+
+    /**
+     * Replays the records of a batch, counting the admitted and rejected requests by key.
+     */
+    void replay(Batch batch) {
+      for (int i = 0; i < batch.size; i++) {
+        long key = batch.keys[i];
+        clock.pin(batch.timestamps[i]);
+
+        long[] counts = keys.computeIfAbsent(key, k -> new long[2]);
+        for (int permit = 0; permit < batch.permits[i]; permit++) {
+          ++counts[limiter.allowed(key) ? 0 : 1];
+        }
+      }
+    }
+  }
+}
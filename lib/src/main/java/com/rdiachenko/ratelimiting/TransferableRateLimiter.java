@@ -0,0 +1,28 @@
+package com.rdiachenko.ratelimiting;
+
+import java.util.List;
+
+/**
+ * A rate limiter whose state per user and per numeric key can be exported as {@link BucketSnapshot}s
+ * and imported into another instance with the same configuration, possibly in
+ * another process.
+ */
+public interface TransferableRateLimiter extends RateLimiter {
+
+  /**
+   * Exports the state of the buckets of all users and numeric keys.
+   *
+   * @return a snapshot per user or key.
+   */
+  List<BucketSnapshot> snapshots();
+
+  /**
+   * Imports the state of the bucket of a user or a numeric key. If it already has
+   * a bucket here, both are brought to the later of their timestamps and the one
+   * which admits fewer requests is kept, so that a user who sent requests to both
+   * instances is not given the limit twice.
+   *
+   * @param snapshot The snapshot to import.
+   */
+  void restore(BucketSnapshot snapshot);
+}
@@ -0,0 +1,127 @@
+package com.rdiachenko.ratelimiting;
+
+import java.math.BigInteger;
+import java.time.Duration;
+
+/**
+ * A refill rate which grows linearly from a cold rate to a stable rate over a
+ * warm-up period, with the tokens refilled since the start of the warm-up kept
+ * as an exact fraction.
+ *
+ * <p>The tokens refilled over the time {@code t} are the integral of the rate,
+ * {@code (2 * warmup * cold * t + (stable - cold) * t^2) / (2 * warmup * period)}.
+ * The whole tokens are the quotient of that fraction and the fraction of a token
+ * left over is its remainder, so tokens never drift however long the warm-up is.
+ * The time at which a number of tokens is refilled is the root of the quadratic,
+ * which is found with an integer square root and corrected to be exact.
+ *
+ * <p>The numerator outgrows a long for warm-ups longer than a few seconds, so the
+ * fraction is computed with BigInteger. Callers should ask for the tokens only once
+ * the next token is due, which takes the arithmetic off the path of requests which
+ * find the bucket empty, and runs it about once per refilled token.
+ */
+final class WarmupRamp {
+
+  private final long warmupNanos;
+  private final BigInteger linear; // 2 * warmup * cold, reduced.
+  private final BigInteger square; // stable - cold, reduced.
+  private final BigInteger denominator; // 2 * warmup * period, reduced.
+  private final long warmupTokens; // Whole tokens refilled over the warm-up period.
+  private final long firstTokenNanos; // Time at which the first token is refilled.
+
+  /**
+   * Constructs a WarmupRamp.
+   *
+   * @param coldTokensPerPeriod   The number of tokens refilled per period at the start.
+   * @param stableTokensPerPeriod The number of tokens refilled per period at the end.
+   * @param period                The period, at least one nanosecond long.
+   * @param warmupPeriod          The warm-up period, at least one nanosecond long.
+   */
+  WarmupRamp(long coldTokensPerPeriod, long stableTokensPerPeriod, Duration period,
+             Duration warmupPeriod) {
+    this.warmupNanos = warmupPeriod.toNanos();
+    BigInteger twiceWarmup = BigInteger.TWO.multiply(BigInteger.valueOf(warmupNanos));
+    BigInteger linear = twiceWarmup.multiply(BigInteger.valueOf(coldTokensPerPeriod));
+    BigInteger square = BigInteger.valueOf(stableTokensPerPeriod - coldTokensPerPeriod);
+    BigInteger denominator = twiceWarmup.multiply(BigInteger.valueOf(period.toNanos()));
+    BigInteger gcd = linear.gcd(square).gcd(denominator);
+    this.linear = linear.divide(gcd);
+    this.square = square.divide(gcd);
+    this.denominator = denominator.divide(gcd);
+    this.warmupTokens = tokens(warmupNanos);
+    this.firstTokenNanos = nanosUntil(1);
+  }
+
+  /**
+   * Returns the number of whole tokens refilled over the warm-up period.
+   *
+   * @return the number of tokens.
+   */
+  long warmupTokens() {
+    return warmupTokens;
+  }
+
+  /**
+   * Returns the time since the start of the warm-up at which the first token is refilled.
+   *
+   * @return the time in nanoseconds, at most the warm-up period.
+   */
+  long firstTokenNanos() {
+    return firstTokenNanos;
+  }
+
+  /**
+   * Calculates the number of whole tokens refilled since the start of the warm-up.
+   * Saturates at Long.MAX_VALUE.
+   *
+   * @param elapsedNanos The time since the start of the warm-up in nanoseconds,
+   *                     at most the warm-up period.
+   * @return the number of tokens.
+   */
+  long tokens(long elapsedNanos) {
+    BigInteger tokens = numerator(elapsedNanos).divide(denominator);
+    return tokens.bitLength() < Long.SIZE ? tokens.longValue() : Long.MAX_VALUE;
+  }
+
+  /**
+   * Calculates the time since the start of the warm-up at which the given
+   * number of tokens will have been refilled.
+   *
+   * @param tokens The number of tokens refilled since the start of the warm-up.
+   * @return the time in nanoseconds, or the warm-up period if the tokens
+   *     are not refilled before the warm-up ends.
+   */
+  long nanosUntil(long tokens) {
+    if (tokens <= 0) {
+      return 0;
+    }
+    if (tokens > warmupTokens) {
+      return warmupNanos;
+    }
+    // The root of square * t^2 + linear * t = tokens * denominator, in the form
+    // 2 * tokens * denominator / (linear + sqrt(discriminant)), which holds for
+    // any sign of the square coefficient.
+    BigInteger target = BigInteger.valueOf(tokens).multiply(denominator);
+    BigInteger discriminant = linear.multiply(linear).add(square.multiply(target).shiftLeft(2));
+    BigInteger root = BigInteger.TWO.multiply(target).divide(linear.add(discriminant.sqrt()));
+    long nanos = Math.min(root.longValue(), warmupNanos);
+
+    // The integer square root and the division round down, so step to the exact time.
+    while (nanos < warmupNanos && numerator(nanos).compareTo(target) < 0) {
+      nanos++;
+    }
+    while (nanos > 0 && numerator(nanos - 1).compareTo(target) >= 0) {
+      nanos--;
+    }
+    return nanos;
+  }
+
+  /**
+   * Calculates {@code t * (linear + square * t)}, the tokens refilled over
+   * the time {@code t} in units of {@code 1 / denominator} of a token.
+   */
+  private BigInteger numerator(long elapsedNanos) {
+    BigInteger elapsed = BigInteger.valueOf(elapsedNanos);
+    return elapsed.multiply(linear.add(square.multiply(elapsed)));
+  }
+}
@@ -0,0 +1,148 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConcurrencyLimiterTest {
+
+  private static final String BOB = "Bob";
+  private static final String ALICE = "Alice";
+
+  @Test
+  void tryAcquire_requestsInFlight_limitsEachUserIndividually() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+
+    assertTrue(limiter.tryAcquire(BOB),
+        "Bob's request 1 must pass, because he has no requests in flight");
+    assertTrue(limiter.tryAcquire(BOB),
+        "Bob's request 2 must pass, because he has 1 request in flight");
+    assertFalse(limiter.tryAcquire(BOB),
+        "Bob's request 3 must not be allowed, because he has 2 requests in flight");
+    assertTrue(limiter.tryAcquire(ALICE),
+        "Alice's request 1 must pass, because Alice has no requests in flight");
+
+    limiter.release(BOB);
+
+    assertTrue(limiter.tryAcquire(BOB),
+        "Bob's request 4 must pass, because request 1 completed");
+  }
+
+  @Test
+  void release_noRequestsInFlight_throwsException() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+
+    assertThrows(IllegalStateException.class, () -> limiter.release(BOB),
+        "Releasing a permit Bob never acquired must fail");
+
+    assertTrue(limiter.tryAcquire(BOB),
+        "Bob's request 1 must pass, because he has no requests in flight");
+    limiter.release(BOB);
+
+    assertThrows(IllegalStateException.class, () -> limiter.release(BOB),
+        "Releasing a permit twice must fail");
+  }
+
+  @Test
+  void release_concurrentReleasesOfOnePermit_neverRaiseTheLimit() throws Exception {
+    for (int round = 0; round < 100; round++) {
+      ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+      assertTrue(limiter.tryAcquire(BOB),
+          "Bob's request 1 must pass, because he has no requests in flight");
+
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Boolean>> releases = new ArrayList<>();
+      try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+        for (int i = 0; i < 8; i++) {
+          releases.add(executor.submit(() -> {
+            start.await();
+            try {
+              limiter.release(BOB);
+              return true;
+            } catch (IllegalStateException e) {
+              return false;
+            }
+          }));
+        }
+        start.countDown();
+      }
+
+      int released = 0;
+      for (Future<Boolean> release : releases) {
+        released += release.get() ? 1 : 0;
+      }
+      assertEquals(1, released, "Only one of the concurrent releases must succeed");
+      assertTrue(limiter.tryAcquire(BOB), "Bob's request 2 must pass");
+      assertTrue(limiter.tryAcquire(BOB), "Bob's request 3 must pass");
+      assertFalse(limiter.tryAcquire(BOB),
+          "Bob's request 4 must not be allowed, because the limit must still be 2");
+    }
+  }
+
+  @Test
+  void tryAcquire_withTimeout_waitsOnVirtualThreadUntilPermitIsReleased() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+    assertTrue(limiter.tryAcquire(BOB),
+        "Bob's request 1 must pass, because he has no requests in flight");
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      assertFalse(executor.submit(() -> limiter.tryAcquire(BOB, Duration.ofMillis(10))).get(),
+          "Bob's request 2 must time out, because request 1 is still in flight");
+
+      CompletableFuture<Void> waiting = new CompletableFuture<>();
+      Future<Boolean> acquired = executor.submit(() -> {
+        waiting.complete(null);
+        return limiter.tryAcquire(BOB, Duration.ofSeconds(10));
+      });
+      waiting.get();
+      limiter.release(BOB);
+
+      assertTrue(acquired.get(),
+          "Bob's request 3 must pass once request 1 completes");
+    }
+  }
+
+  @Test
+  void tryAcquire_withRateLimiter_requiresBothLimitsAndKeepsThemConsistent() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    TokenBucketRateLimiter rateLimiter
+        = new TokenBucketRateLimiter(2, Duration.ofSeconds(1), 2, clock, GREEDY);
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    assertTrue(limiter.tryAcquire(BOB, rateLimiter),
+        "Bob's request 1 must pass both limits");
+    assertFalse(limiter.tryAcquire(BOB, rateLimiter),
+        "Bob's request 2 must not be allowed, because request 1 is in flight");
+
+    limiter.release(BOB);
+
+    assertTrue(limiter.tryAcquire(BOB, rateLimiter),
+        "Bob's request 3 must pass, because request 2 did not use up a token");
+    limiter.release(BOB);
+    assertFalse(limiter.tryAcquire(BOB, rateLimiter),
+        "Bob's request 4 must not be allowed, because the bucket is empty");
+
+    assertTrue(limiter.tryAcquire(BOB, decision),
+        "The permit of request 4 must have been released after the rate limit rejected it");
+    assertEquals(0, decision.remaining(),
+        "Bob has no permits left while request 5 is in flight");
+  }
+}
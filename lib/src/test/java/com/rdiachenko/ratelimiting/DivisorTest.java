@@ -0,0 +1,87 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DivisorTest {
+
+  // Powers of two, their neighbours, small odd divisors and the largest divisor.
+  private static final long[] DIVISORS = {
+      1, 2, 3, 5, 7, 10, 1000, 1_000_000_007, 1_000_000_000,
+      (1L << 30) - 1, 1L << 30, (1L << 30) + 1,
+      (1L << 62) - 1, 1L << 62, (1L << 62) + 1,
+      Long.MAX_VALUE - 1, Long.MAX_VALUE};
+
+  // Zero, small values, values around the divisors and the extremes of a long.
+  private static final long[] DIVIDENDS = {
+      0, 1, 2, 3, 4, 6, 7, 999, 1000, 1001,
+      (1L << 30) - 1, 1L << 30, (1L << 31) + 1,
+      (1L << 62) - 1, 1L << 62, (1L << 62) + 1,
+      Long.MAX_VALUE - 2, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+
+  @Test
+  void quotient_edgeValues_matchesDivisionOperator() {
+    for (long d : DIVISORS) {
+      Divisor divisor = new Divisor(d);
+      for (long n : DIVIDENDS) {
+        for (long dividend : new long[] {n, -n, n - d, n + d, d * 3, d - 1}) {
+          if (dividend != Long.MIN_VALUE) {
+            assertQuotient(divisor, d, dividend);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  void quotient_randomValues_matchesDivisionOperator() {
+    Random random = new Random(42);
+    for (int i = 0; i < 1_000; i++) {
+      // Divisors of every magnitude, from a few bits up to 63.
+      long d = Math.max(1, random.nextLong() >>> random.nextInt(Long.SIZE));
+      Divisor divisor = new Divisor(d);
+      for (int j = 0; j < 100; j++) {
+        long dividend = random.nextLong() >> random.nextInt(Long.SIZE);
+        if (dividend != Long.MIN_VALUE) {
+          assertQuotient(divisor, d, dividend);
+        }
+      }
+    }
+  }
+
+  @Test
+  void quotient_dividendsNearLongMaxValue_matchesDivisionOperator() {
+    for (long d : new long[] {3, 7, 1_000_000_000, Long.MAX_VALUE}) {
+      Divisor divisor = new Divisor(d);
+      for (long dividend = Long.MAX_VALUE; dividend > Long.MAX_VALUE - 10_000; dividend--) {
+        assertQuotient(divisor, d, dividend);
+        assertQuotient(divisor, d, -dividend);
+      }
+    }
+  }
+
+  @Test
+  void quotient_longMinValue_isRejected() {
+    assertThrows(IllegalArgumentException.class, () -> new Divisor(3).quotient(Long.MIN_VALUE),
+        "Long.MIN_VALUE must be rejected, because its negation overflows");
+    assertThrows(IllegalArgumentException.class, () -> new Divisor(4).quotient(Long.MIN_VALUE),
+        "Long.MIN_VALUE must be rejected by power of two divisors too");
+  }
+
+  @Test
+  void constructor_nonPositiveDivisor_isRejected() {
+    assertThrows(IllegalArgumentException.class, () -> new Divisor(0),
+        "A zero divisor must be rejected");
+    assertThrows(IllegalArgumentException.class, () -> new Divisor(-3),
+        "A negative divisor must be rejected");
+  }
+
+  private static void assertQuotient(Divisor divisor, long d, long dividend) {
+    assertEquals(dividend / d, divisor.quotient(dividend),
+        () -> dividend + " / " + d + " must round towards zero as the division operator does");
+  }
+}
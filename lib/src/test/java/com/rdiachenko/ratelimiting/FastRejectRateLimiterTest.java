@@ -0,0 +1,86 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FastRejectRateLimiterTest {
+
+  private static final String BOB = "Bob";
+  private static final String ALICE = "Alice";
+
+  @Test
+  void allowed_keyOverLimit_isRejectedWithoutLimiterUntilItCouldBeAllowedAgain() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+
+    LeakyBucketRateLimiter leakyBucket = spy(new LeakyBucketRateLimiter(2, Duration.ofSeconds(1), 1, clock));
+    FastRejectRateLimiter limiter = new FastRejectRateLimiter(leakyBucket, clock, 16);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    assertTrue(limiter.allowed(BOB), "Bob's request 1 at timestamp=0 must pass");
+    assertTrue(limiter.allowed(BOB), "Bob's request 2 at timestamp=0 must pass");
+    assertFalse(limiter.allowed(BOB), "Bob's request 3 at timestamp=0 must not be allowed");
+    verify(leakyBucket, times(3)).allowed(eq(BOB), any());
+
+    now[0] = 500;
+    for (int i = 0; i < 100; i++) {
+      assertFalse(limiter.allowed(BOB, decision), "Bob's flood at timestamp=500 must not be allowed");
+    }
+    verify(leakyBucket, times(3)).allowed(eq(BOB), any());
+    assertEquals(Duration.ofMillis(500).toNanos(), decision.retryAfterNanos(),
+        "Bob must wait until a request leaks at timestamp=1000");
+
+    assertTrue(limiter.allowed(ALICE), "Alice's request 1 must pass, because only Bob is denied");
+
+    now[0] = 1000;
+    assertTrue(limiter.allowed(BOB), "Bob's request at timestamp=1000 must pass, because a request leaked");
+    verify(leakyBucket, times(4)).allowed(eq(BOB), any());
+  }
+
+  @Test
+  void allowed_limiterWithoutRetryTime_isNeverShortCircuited() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    // A limiter which rejects without describing when to retry.
+    RateLimiter rejecting = mock(RateLimiter.class);
+    when(rejecting.allowed(eq(BOB), any())).thenReturn(false, false, true);
+    FastRejectRateLimiter limiter = new FastRejectRateLimiter(rejecting, clock, 16);
+
+    assertFalse(limiter.allowed(BOB), "Bob's request 1 must not be allowed");
+    assertFalse(limiter.allowed(BOB), "Bob's request 2 must not be allowed");
+    assertTrue(limiter.allowed(BOB), "Bob's request 3 must pass as soon as the limiter allows it");
+    verify(rejecting, times(3)).allowed(eq(BOB), any());
+  }
+
+  @Test
+  void allowed_numericKeys_areRememberedApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    LeakyBucketRateLimiter leakyBucket = spy(new LeakyBucketRateLimiter(1, Duration.ofSeconds(1), 1, clock));
+    FastRejectRateLimiter limiter = new FastRejectRateLimiter(leakyBucket, clock, 16);
+
+    assertTrue(limiter.allowed(42L), "Key 42's request 1 must pass");
+    assertFalse(limiter.allowed(42L), "Key 42's request 2 must not be allowed");
+    assertFalse(limiter.allowed(42L), "Key 42's request 3 must be rejected from the cache");
+    verify(leakyBucket, times(2)).allowed(eq(42L), any());
+
+    assertTrue(limiter.allowed("42"),
+        "The request of string key 42 must pass, because numeric keys are limited apart");
+  }
+}
@@ -0,0 +1,145 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.rdiachenko.ratelimiting.FlatCombiner.CONTENTION_THRESHOLD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlatCombinerTest {
+
+  // The argument of a request which holds the lock until it is released.
+  private static final long BLOCK = -1;
+
+  @Test
+  void submit_contentionPastThreshold_combinesRequestsAndHandsEachWaiterItsResultAndDecision()
+      throws Exception {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    RecordingCombiner combiner = new RecordingCombiner(clock);
+
+    for (int round = 0; !combiner.combining(); round++) {
+      assertTrue(round < 1_000, "Combining must be switched on once the lock is contended");
+      contend(combiner, CONTENTION_THRESHOLD);
+    }
+
+    // Every waiter asserts that it got its own result and decision.
+    for (int round = 0; round < 20; round++) {
+      contend(combiner, 8);
+    }
+    assertTrue(combiner.combined.get() > 0,
+        "Some requests must have been applied by a combiner on behalf of their waiting threads");
+  }
+
+  @Test
+  void submit_contentionsAmongUncontendedRequests_decayBeforeSwitchingCombiningOn()
+      throws Exception {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    RecordingCombiner combiner = new RecordingCombiner(clock);
+
+    // Each burst contends at most half of the threshold times, and is followed
+    // by enough uncontended requests to outweigh it.
+    for (int burst = 0; burst < 10; burst++) {
+      contend(combiner, CONTENTION_THRESHOLD / 2);
+      for (int i = 0; i < CONTENTION_THRESHOLD; i++) {
+        assertEquals(2 * i, combiner.submit(i, null), "An uncontended request must be applied");
+      }
+    }
+
+    assertFalse(combiner.combining(),
+        "Occasional contention among uncontended requests must not switch combining on");
+  }
+
+  /**
+   * Holds the lock in one thread while the given number of threads submit requests,
+   * then lets them through and checks that each one got its own result and decision.
+   */
+  private static void contend(RecordingCombiner combiner, int waiters) throws Exception {
+    CountDownLatch holding = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    combiner.holding = holding;
+    combiner.release = release;
+    Thread holder = Thread.ofPlatform().start(() -> combiner.submit(BLOCK, null));
+    holding.await();
+
+    List<Thread> threads = new ArrayList<>();
+    long[] arguments = new long[waiters];
+    long[] results = new long[waiters];
+    RateLimitDecision[] decisions = new RateLimitDecision[waiters];
+    for (int i = 0; i < waiters; i++) {
+      int waiter = i;
+      arguments[i] = combiner.nextArgument.incrementAndGet();
+      decisions[i] = new RateLimitDecision();
+      threads.add(Thread.ofPlatform().start(() -> {
+        combiner.submitters.put(arguments[waiter], Thread.currentThread());
+        results[waiter] = combiner.submit(arguments[waiter], decisions[waiter]);
+      }));
+    }
+
+    // Give the waiters time to block on the lock or publish their requests.
+    Thread.sleep(10);
+    release.countDown();
+    holder.join();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    for (int i = 0; i < waiters; i++) {
+      assertEquals(2 * arguments[i], results[i],
+          "Request " + arguments[i] + " must get its own result back");
+      assertEquals(arguments[i], decisions[i].remaining(),
+          "Request " + arguments[i] + " must get its own decision filled in");
+    }
+  }
+
+  /**
+   * Doubles the argument of every request, describes it in the decision, and counts
+   * the requests applied by another thread than the one which submitted them.
+   */
+  private static final class RecordingCombiner extends FlatCombiner {
+    final AtomicLong nextArgument = new AtomicLong(1_000);
+    final AtomicInteger combined = new AtomicInteger();
+    final Map<Long, Thread> submitters = new ConcurrentHashMap<>();
+    volatile CountDownLatch holding;
+    volatile CountDownLatch release;
+
+    RecordingCombiner(Clock clock) {
+      super(clock);
+    }
+
+    @Override
+    long apply(long now, long argument, RateLimitDecision decision) {
+      if (argument == BLOCK) {
+        holding.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        }
+        return 0;
+      }
+      Thread submitter = submitters.get(argument);
+      if (submitter != null && submitter != Thread.currentThread()) {
+        combined.incrementAndGet();
+      }
+      if (decision != null) {
+        decision.setNanos(true, argument, 0, 0);
+      }
+      return 2 * argument;
+    }
+  }
+}
@@ -5,7 +5,9 @@ import org.junit.jupiter.api.Test;
 import java.time.Clock;
 import java.time.Duration;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -42,9 +44,10 @@ public class LeakyBucketRateLimiterTest {
             " making capacity for 1 request");
 
     // 2 seconds passed
-    assertFalse(limiter.allowed(BOB),
-        "Bob's request 5 at timestamp=2000 must not be allowed," +
-            " because bucket has reached its max capacity and no leaks occurred");
+    assertTrue(limiter.allowed(BOB),
+        "Bob's request 5 at timestamp=2000 must pass," +
+            " because bucket leaked 1 request since the last leak timestamp=1000," +
+            " as the 500 milliseconds elapsed after it count towards the next leak");
     assertFalse(limiter.allowed(BOB),
         "Bob's request 6 at timestamp=2400 must not be allowed," +
             " because bucket has reached its max capacity and no leaks occurred");
@@ -52,11 +55,12 @@ public class LeakyBucketRateLimiterTest {
     // 3 seconds passed
     assertTrue(limiter.allowed(BOB),
         "Bob's request 7 at timestamp=3500 must pass," +
-            " because bucket leaked 2 requests since the last leak timestamp=1500" +
-            " making capacity for 2 requests");
-    assertTrue(limiter.allowed(BOB),
-        "Bob's request 8 at timestamp=3501 must pass," +
-            " because bucket has capacity for 1 more request (water level = 1)");
+            " because bucket leaked 1 request since the last leak timestamp=2000" +
+            " making capacity for 1 request");
+    assertFalse(limiter.allowed(BOB),
+        "Bob's request 8 at timestamp=3501 must not be allowed," +
+            " because bucket has reached its max capacity and no leaks occurred" +
+            " since the last leak timestamp=3000");
     assertFalse(limiter.allowed(BOB),
         "Bob's request 9 at timestamp=3502 must not be allowed," +
             " because bucket has reached its max capacity and no leaks occurred");
@@ -109,4 +113,135 @@ public class LeakyBucketRateLimiterTest {
         "Alice's request 5 at timestamp=3003 must not be allowed," +
             " because bucket has reached its max capacity and no leaks occurred");
   }
+
+  @Test
+  void allowed_withDecision_describesRemainingCapacityAndLeakTimes() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 300L);
+
+    LeakyBucketRateLimiter limiter
+        = new LeakyBucketRateLimiter(2, Duration.ofSeconds(1), 1, clock);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 1 at timestamp=0 must pass");
+    assertEquals(1, decision.remaining(),
+        "Bob's bucket has capacity for 1 more request");
+    assertEquals(Duration.ofMillis(1000).toNanos(), decision.resetNanos(),
+        "The pending request leaks out at timestamp=1000");
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 2 at timestamp=0 must pass");
+    assertEquals(0, decision.remaining(),
+        "Bob's bucket is full");
+
+    assertFalse(limiter.allowed(BOB, decision),
+        "Bob's request 3 at timestamp=300 must not be allowed");
+    assertEquals(Duration.ofMillis(700).toNanos(), decision.retryAfterNanos(),
+        "Bob must wait until the next leak at timestamp=1000");
+    assertEquals(Duration.ofMillis(1700).toNanos(), decision.resetNanos(),
+        "The 2 pending requests leak out by timestamp=2000");
+  }
+
+  @Test
+  void constructor_nonPositiveLeaksPerPeriod_isRejected() {
+    Clock clock = mock(Clock.class);
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new LeakyBucketRateLimiter(2, Duration.ofSeconds(1), 0, clock),
+        "A bucket which never leaks must be rejected");
+    assertThrows(IllegalArgumentException.class,
+        () -> new LeakyBucketRateLimiter(2, Duration.ofSeconds(1), -1, clock),
+        "A negative leak rate must be rejected");
+  }
+
+  @Test
+  void allowed_requestsBetweenLeaks_keepElapsedFractionOfPeriod() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+
+    LeakyBucketRateLimiter limiter
+        = new LeakyBucketRateLimiter(1, Duration.ofMillis(3), 1, clock);
+
+    int allowed = 0;
+    for (; now[0] <= 600; now[0] += 2) {
+      if (limiter.allowed(BOB)) {
+        allowed++;
+      }
+    }
+
+    assertEquals(1 + 200, allowed,
+        "Bob must fill the bucket once and then get exactly 1 request" +
+            " per 3 milliseconds, although he only checks every 2 milliseconds");
+  }
+
+  @Test
+  void allowed_subMillisecondPeriod_enforcesHighRate() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+
+    // 10 thousand leaks per second.
+    LeakyBucketRateLimiter limiter
+        = new LeakyBucketRateLimiter(10, Duration.ofNanos(100_000), 1, clock);
+
+    int allowed = 0;
+    for (; now[0] <= 100; now[0]++) {
+      while (limiter.allowed(BOB)) {
+        allowed++;
+      }
+    }
+
+    assertEquals(10 + 1000, allowed,
+        "Bob must fill the bucket once and then get exactly 10 requests per millisecond");
+  }
+
+  @Test
+  void allowed_numericKeys_limitsEachKeyIndividuallyApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    LeakyBucketRateLimiter limiter = new LeakyBucketRateLimiter(2, Duration.ofSeconds(1), 1, clock);
+
+    // Enough keys to grow the primitive map several times.
+    for (long key = 1; key <= 1000; key++) {
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 1 must pass");
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 2 must pass");
+    }
+    for (long key = 1; key <= 1000; key++) {
+      assertFalse(limiter.allowed(key), "Key " + key + "'s request 3 must not be allowed");
+    }
+
+    assertTrue(limiter.allowed("42"),
+        "The request of string key 42 must pass, because numeric keys are limited apart");
+  }
+
+  @Test
+  void restore_snapshotsOfAnotherLimiter_keepStateAndMergeWithExistingBuckets() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    LeakyBucketRateLimiter source = new LeakyBucketRateLimiter(3, Duration.ofSeconds(1), 1, clock);
+    LeakyBucketRateLimiter target = new LeakyBucketRateLimiter(3, Duration.ofSeconds(1), 1, clock);
+
+    for (int i = 0; i < 2; i++) {
+      assertTrue(source.allowed(BOB), "Bob's request " + (i + 1) + " must pass at the source");
+    }
+    assertTrue(source.allowed(ALICE), "Alice's request 1 must pass at the source");
+    for (int i = 0; i < 2; i++) {
+      assertTrue(target.allowed(ALICE), "Alice's request " + (i + 2) + " must pass at the target");
+    }
+
+    for (BucketSnapshot snapshot : source.snapshots()) {
+      target.restore(snapshot);
+    }
+
+    assertTrue(target.allowed(BOB), "Bob's request 3 must pass, because his water level moved");
+    assertFalse(target.allowed(BOB), "Bob's request 4 must not be allowed");
+    assertTrue(target.allowed(ALICE),
+        "Alice's request 4 must pass, because the target's fuller bucket wins");
+    assertFalse(target.allowed(ALICE), "Alice's request 5 must not be allowed");
+
+    when(clock.millis()).thenReturn(1000L);
+    assertTrue(target.allowed(BOB), "Bob's request 5 must pass, because a request leaked");
+  }
 }
@@ -0,0 +1,264 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PartitionedRateLimiterTest {
+
+  private static final int USERS = 100;
+
+  @Test
+  void allowed_requestsThroughAnyNode_shareTheLimitOfTheOwnerNode() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    LoopbackTransport transport = new LoopbackTransport();
+    Map<String, PartitionedRateLimiter> nodes = cluster(transport, clock, "A", "B", "C");
+
+    for (int i = 0; i < USERS; i++) {
+      for (PartitionedRateLimiter node : nodes.values()) {
+        String userId = "user-" + i;
+        boolean first = node.nodeId().equals("A");
+        assertEquals(first, node.allowed(userId),
+            userId + " must get only the 1 token of the owner's bucket, whichever node is asked");
+      }
+    }
+
+    for (PartitionedRateLimiter node : nodes.values()) {
+      assertTrue(node.partitions() > 0,
+          "Node " + node.nodeId() + " must own some partitions");
+    }
+  }
+
+  @Test
+  void allowed_numericKeysThroughAnyNode_shareTheLimitOfTheOwnerNodeApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    LoopbackTransport transport = new LoopbackTransport();
+    Map<String, PartitionedRateLimiter> nodes = cluster(transport, clock, "A", "B", "C");
+
+    for (long key = 0; key < USERS; key++) {
+      for (PartitionedRateLimiter node : nodes.values()) {
+        boolean first = node.nodeId().equals("A");
+        assertEquals(first, node.allowed(key),
+            "Key " + key + " must get only the 1 token of the owner's bucket, whichever node is asked");
+      }
+      assertTrue(nodes.get("B").allowed(Long.toString(key)),
+          "The request of string key " + key + " must pass, because numeric keys are limited apart");
+    }
+  }
+
+  @Test
+  void allowed_batchOfRequests_forwardsOneMessagePerRemoteOwner() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    List<String> forwardedTo = new ArrayList<>();
+    LoopbackTransport transport = new LoopbackTransport() {
+      @Override
+      public ForwardedDecision[] forward(String nodeId, String[] userIds) {
+        forwardedTo.add(nodeId);
+        return super.forward(nodeId, userIds);
+      }
+    };
+    Map<String, PartitionedRateLimiter> nodes = cluster(transport, clock, "A", "B", "C");
+
+    List<String> userIds = new ArrayList<>();
+    for (int i = 0; i < USERS; i++) {
+      userIds.add("user-" + i);
+    }
+    userIds.add("user-0");
+
+    boolean[] allowed = nodes.get("A").allowed(userIds);
+
+    for (int i = 0; i < USERS; i++) {
+      assertTrue(allowed[i], "The first request of user-" + i + " must pass");
+    }
+    assertFalse(allowed[USERS], "The second request of user-0 must not be allowed");
+    assertEquals(Set.of("B", "C"), Set.copyOf(forwardedTo),
+        "Requests must be forwarded to both remote nodes");
+    assertEquals(2, forwardedTo.size(),
+        "Each remote node must receive a single batch");
+  }
+
+  @Test
+  void allowed_concurrentSingleRequestsToARemoteOwner_areCoalescedIntoOneMessage()
+      throws Exception {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+    CountDownLatch forwarding = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean holding = new AtomicBoolean();
+    LoopbackTransport transport = new LoopbackTransport() {
+      @Override
+      public ForwardedDecision[] forward(String nodeId, String[] userIds) {
+        batchSizes.add(userIds.length);
+        if (holding.get()) {
+          forwarding.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+          }
+        }
+        return super.forward(nodeId, userIds);
+      }
+    };
+    PartitionedRateLimiter a = cluster(transport, clock, "A", "B").get("A");
+
+    // Find users owned by B, whose request 1 is forwarded by A.
+    List<String> userIds = new ArrayList<>();
+    for (int i = 0; userIds.size() < 8; i++) {
+      assertTrue(a.allowed("user-" + i), "The request 1 of user-" + i + " must pass");
+      if (!batchSizes.isEmpty()) {
+        userIds.add("user-" + i);
+        batchSizes.clear();
+      }
+    }
+    holding.set(true);
+
+    // The first request holds the message in flight while the others queue up.
+    RateLimitDecision[] decisions = new RateLimitDecision[userIds.size()];
+    boolean[] allowed = new boolean[userIds.size()];
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < userIds.size(); i++) {
+      int request = i;
+      decisions[i] = new RateLimitDecision();
+      threads.add(Thread.ofPlatform().start(
+          () -> allowed[request] = a.allowed(userIds.get(request), decisions[request])));
+      if (i == 0) {
+        forwarding.await();
+      }
+    }
+    // Wait until the other requests are queued behind the one in flight.
+    for (Thread thread : threads.subList(1, threads.size())) {
+      while (thread.getState() != Thread.State.WAITING) {
+        Thread.onSpinWait();
+      }
+    }
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(List.of(1, userIds.size() - 1), batchSizes,
+        "The requests queued while the first one was in flight must go in a single message");
+    for (int i = 0; i < userIds.size(); i++) {
+      assertFalse(allowed[i], "The request 2 of " + userIds.get(i)
+          + " must not be allowed, because its bucket at B is empty");
+      assertEquals(Duration.ofSeconds(1).toNanos(), decisions[i].retryAfterNanos(),
+          "The decision of " + userIds.get(i) + " must be carried back from B");
+    }
+  }
+
+  @Test
+  void updateMembers_nodesLeaveAndJoin_handOffBucketStateToNewOwners() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    LoopbackTransport transport = new LoopbackTransport();
+    Map<String, PartitionedRateLimiter> nodes = cluster(transport, clock, "A", "B", "C");
+
+    for (int i = 0; i < USERS; i++) {
+      assertTrue(nodes.get("A").allowed("user-" + i),
+          "The first request of user-" + i + " must pass");
+      assertTrue(nodes.get("A").allowed((long) i), "The first request of key " + i + " must pass");
+    }
+
+    // Node C leaves, and its partitions move to A and B.
+    transport.updateMembers(Set.of("A", "B"));
+    transport.unregister("C");
+    assertEquals(0, nodes.get("C").partitions(), "Node C must have handed off all partitions");
+
+    // Node D joins, and takes partitions over from A and B.
+    PartitionedRateLimiter d = node("D", Set.of("A", "B", "D"), transport, clock);
+    transport.register(d);
+    transport.updateMembers(Set.of("A", "B", "D"));
+    assertTrue(d.partitions() > 0, "Node D must have taken partitions over");
+
+    for (int i = 0; i < USERS; i++) {
+      assertFalse(d.allowed("user-" + i),
+          "The second request of user-" + i + " must not be allowed, because its bucket moved with it");
+      assertFalse(d.allowed((long) i),
+          "The second request of key " + i + " must not be allowed, because its bucket moved with it");
+    }
+  }
+
+  @Test
+  void updateMembers_newOwnerDecidedDuringHandoff_keepsMoreRestrictiveState() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    List<String> forwardedTo = new ArrayList<>();
+    LoopbackTransport transport = new LoopbackTransport() {
+      @Override
+      public ForwardedDecision[] forward(String nodeId, String[] userIds) {
+        forwardedTo.add(nodeId);
+        return super.forward(nodeId, userIds);
+      }
+    };
+    Map<String, PartitionedRateLimiter> nodes = new LinkedHashMap<>();
+    for (String nodeId : List.of("A", "B")) {
+      PartitionedRateLimiter node = new PartitionedRateLimiter(nodeId, Set.of("A", "B"), 64, 32,
+          () -> new TokenBucketRateLimiter(2, Duration.ofSeconds(1), 2, clock, GREEDY), transport);
+      transport.register(node);
+      nodes.put(nodeId, node);
+    }
+    PartitionedRateLimiter a = nodes.get("A");
+    PartitionedRateLimiter b = nodes.get("B");
+
+    // Find a user owned by A, whose request 1 is decided by A without forwarding.
+    String userId = null;
+    for (int i = 0; userId == null; i++) {
+      forwardedTo.clear();
+      assertTrue(a.allowed("user-" + i), "The request 1 of user-" + i + " must pass");
+      if (forwardedTo.isEmpty()) {
+        userId = "user-" + i;
+      }
+    }
+
+    // B learns about A leaving first, and decides on requests before the handoff.
+    b.updateMembers(Set.of("B"));
+    assertTrue(b.allowed(userId), "The user's request 2 must pass at B, which has a new bucket");
+    assertTrue(b.allowed(userId), "The user's request 3 must pass at B, which has a new bucket");
+
+    a.updateMembers(Set.of("B"));
+    assertEquals(0, a.partitions(), "Node A must have handed off all partitions");
+
+    assertFalse(b.allowed(userId),
+        "The user's request 4 must not be allowed, because B's empty bucket"
+            + " must win over the handed off bucket with 1 token");
+  }
+
+  private static Map<String, PartitionedRateLimiter> cluster(LoopbackTransport transport,
+                                                             Clock clock, String... nodeIds) {
+    Map<String, PartitionedRateLimiter> nodes = new LinkedHashMap<>();
+    for (String nodeId : nodeIds) {
+      PartitionedRateLimiter node = node(nodeId, Set.of(nodeIds), transport, clock);
+      transport.register(node);
+      nodes.put(nodeId, node);
+    }
+    return nodes;
+  }
+
+  private static PartitionedRateLimiter node(String nodeId, Set<String> members,
+                                             LoopbackTransport transport, Clock clock) {
+    return new PartitionedRateLimiter(nodeId, members, 64, 32,
+        () -> new TokenBucketRateLimiter(1, Duration.ofSeconds(1), 1, clock, GREEDY), transport);
+  }
+}
@@ -0,0 +1,163 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Function;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ShadowRateLimiterTest {
+
+  private static final String BOB = "Bob";
+
+  @Test
+  void allowed_candidatesDecideDifferently_enforcesPrimaryAndCountsDisagreements() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    FixedWindowRateLimiter primary = new FixedWindowRateLimiter(2, Duration.ofSeconds(1), clock);
+    Function<Clock, RateLimiter> looser
+        = c -> new TokenBucketRateLimiter(3, Duration.ofSeconds(1), 3, c, GREEDY);
+    Function<Clock, RateLimiter> stricter = c -> new LeakyBucketRateLimiter(1, Duration.ofSeconds(1), 1, c);
+
+    // The background thread is not started, so that the test drains the buffer.
+    try (ShadowRateLimiter limiter = new ShadowRateLimiter(primary, List.of(looser, stricter), 8,
+        clock, Thread.ofVirtual().factory())) {
+      assertTrue(limiter.allowed(BOB), "Bob's request 1 must pass the primary limiter");
+      assertTrue(limiter.allowed(BOB), "Bob's request 2 must pass the primary limiter");
+      assertFalse(limiter.allowed(BOB), "Bob's request 3 must be rejected by the primary limiter");
+
+      assertEquals(3, limiter.drain(), "All 3 decisions must be evaluated");
+
+      assertEquals(new ShadowRateLimiter.CandidateStats(3, 0, 1, 0), limiter.stats(0),
+          "The token bucket holds 3 tokens, so it would have allowed request 3");
+      assertEquals(new ShadowRateLimiter.CandidateStats(3, 1, 0, 0), limiter.stats(1),
+          "The leaky bucket holds 1 request, so it would have rejected request 2");
+      assertEquals(1.0 / 3, limiter.stats(1).disagreementRatio(), 1e-9,
+          "The leaky bucket disagrees on 1 of 3 requests");
+    }
+  }
+
+  @Test
+  void allowed_bufferFull_dropsShadowWorkWithoutAffectingPrimary() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    FixedWindowRateLimiter primary = new FixedWindowRateLimiter(10, Duration.ofSeconds(1), clock);
+    Function<Clock, RateLimiter> candidate = c -> new FixedWindowRateLimiter(10, Duration.ofSeconds(1), c);
+
+    try (ShadowRateLimiter limiter = new ShadowRateLimiter(primary, List.of(candidate), 4,
+        clock, Thread.ofVirtual().factory())) {
+      for (int i = 1; i <= 6; i++) {
+        assertTrue(limiter.allowed(BOB), "Bob's request " + i + " must pass the primary limiter");
+      }
+
+      assertEquals(2, limiter.dropped(), "2 decisions must be dropped, because the buffer holds 4");
+      assertEquals(4, limiter.drain(), "The 4 buffered decisions must be evaluated");
+
+      assertTrue(limiter.allowed(BOB), "Bob's request 7 must pass the primary limiter");
+      assertEquals(1, limiter.drain(), "The buffer must accept decisions again once drained");
+      assertEquals(new ShadowRateLimiter.CandidateStats(5, 0, 0, 0), limiter.stats(0),
+          "The candidate must agree on all evaluated requests");
+    }
+  }
+
+  @Test
+  void allowed_requestsEvaluatedLater_candidatesDecideAsOfTheTimeOfTheRequests() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    FixedWindowRateLimiter primary = new FixedWindowRateLimiter(1, Duration.ofSeconds(1), clock);
+    Function<Clock, RateLimiter> candidate = c -> new FixedWindowRateLimiter(1, Duration.ofSeconds(1), c);
+
+    try (ShadowRateLimiter limiter = new ShadowRateLimiter(primary, List.of(candidate), 8,
+        clock, Thread.ofVirtual().factory())) {
+      assertTrue(limiter.allowed(BOB), "Bob's request 1 must pass the primary limiter");
+      when(clock.millis()).thenReturn(2_000L);
+      assertTrue(limiter.allowed(BOB), "Bob's request 2 must pass the primary limiter in a new window");
+      when(clock.millis()).thenReturn(2_500L);
+
+      assertEquals(2, limiter.drain(), "Both decisions must be evaluated");
+      assertEquals(new ShadowRateLimiter.CandidateStats(2, 0, 0, 0), limiter.stats(0),
+          "The candidate must see the requests 2 seconds apart, as the primary limiter did,"
+              + " and not both at the time of the evaluation");
+    }
+  }
+
+  @Test
+  void allowed_backgroundThread_wakesUpToEvaluatePublishedDecisions() throws Exception {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    FixedWindowRateLimiter primary = new FixedWindowRateLimiter(1, Duration.ofSeconds(1), clock);
+    Function<Clock, RateLimiter> candidate = c -> new FixedWindowRateLimiter(1, Duration.ofSeconds(1), c);
+
+    try (ShadowRateLimiter limiter = new ShadowRateLimiter(primary, List.of(candidate), 16,
+        clock, Thread.ofVirtual().factory()).start()) {
+      limiter.allowed(BOB);
+      limiter.allowed(BOB);
+      awaitEvaluated(limiter, 2);
+      assertEquals(new ShadowRateLimiter.CandidateStats(2, 0, 0, 0), limiter.stats(0),
+          "The background thread must evaluate both decisions");
+
+      // Let the background thread park on the empty buffer.
+      Thread.sleep(50);
+      limiter.allowed(BOB);
+      awaitEvaluated(limiter, 3);
+      assertEquals(new ShadowRateLimiter.CandidateStats(3, 0, 0, 0), limiter.stats(0),
+          "The background thread must be woken up by the next decision");
+    }
+  }
+
+  @Test
+  void close_callerInterrupted_stopsWaitingAndKeepsInterruptStatus() {
+    Clock clock = mock(Clock.class);
+    FixedWindowRateLimiter primary = new FixedWindowRateLimiter(1, Duration.ofSeconds(1), clock);
+    ShadowRateLimiter limiter = new ShadowRateLimiter(primary, List.of(), 4,
+        clock, Thread.ofVirtual().factory()).start();
+
+    Thread.currentThread().interrupt();
+    limiter.close();
+
+    assertTrue(Thread.interrupted(), "The interrupt status must be restored by close");
+    assertThrows(IllegalStateException.class, limiter::start,
+        "A started limiter must not be started again");
+  }
+
+  @Test
+  void allowed_numericKeys_areEvaluatedByCandidatesApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    FixedWindowRateLimiter primary = new FixedWindowRateLimiter(1, Duration.ofSeconds(1), clock);
+    Function<Clock, RateLimiter> candidate = c -> new FixedWindowRateLimiter(1, Duration.ofSeconds(1), c);
+
+    try (ShadowRateLimiter limiter = new ShadowRateLimiter(primary, List.of(candidate), 8,
+        clock, Thread.ofVirtual().factory())) {
+      assertTrue(limiter.allowed(42L), "Key 42's request 1 must pass the primary limiter");
+      assertTrue(limiter.allowed("42"),
+          "The request of string key 42 must pass, because numeric keys are limited apart");
+      assertFalse(limiter.allowed(42L), "Key 42's request 2 must be rejected by the primary limiter");
+
+      assertEquals(3, limiter.drain(), "All 3 decisions must be evaluated");
+      assertEquals(new ShadowRateLimiter.CandidateStats(3, 0, 0, 0), limiter.stats(0),
+          "The candidate must see numeric and string keys apart, as the primary limiter does");
+    }
+  }
+
+  private static void awaitEvaluated(ShadowRateLimiter limiter, long evaluated) throws InterruptedException {
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (limiter.stats(0).evaluated() < evaluated && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+}
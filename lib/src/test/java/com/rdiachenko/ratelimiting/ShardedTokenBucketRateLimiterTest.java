@@ -0,0 +1,133 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class ShardedTokenBucketRateLimiterTest {
+
+  private static final String BOB = "Bob";
+  private static final String ALICE = "Alice";
+
+  @Test
+  void allowed_singleThread_stealsTokensFromSiblingShards() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    ShardedTokenBucketRateLimiter limiter
+        = new ShardedTokenBucketRateLimiter(4, Duration.ofSeconds(1), 4, 2, clock);
+
+    for (int i = 1; i <= 4; i++) {
+      assertTrue(limiter.allowed(BOB),
+          "Bob's request " + i + " at timestamp=0 must pass," +
+              " because the bucket shards hold 4 tokens in total");
+    }
+    assertFalse(limiter.allowed(BOB),
+        "Bob's request 5 at timestamp=0 must not be allowed," +
+            " because all bucket shards are empty");
+    assertTrue(limiter.allowed(ALICE),
+        "Alice's request 1 at timestamp=0 must pass," +
+            " because Alice has her own bucket");
+
+    when(clock.millis()).thenReturn(500L);
+
+    assertTrue(limiter.allowed(BOB),
+        "Bob's request 6 at timestamp=500 must pass," +
+            " because both shards were refilled with 1 token");
+    assertTrue(limiter.allowed(BOB),
+        "Bob's request 7 at timestamp=500 must pass," +
+            " because the sibling shard still has 1 token");
+    assertFalse(limiter.allowed(BOB),
+        "Bob's request 8 at timestamp=500 must not be allowed," +
+            " because all bucket shards are empty");
+  }
+
+  @Test
+  void allowed_concurrentRequestsOverTime_overshootExactTokenBucketByAtMostShardsMinusOne()
+      throws Exception {
+    AtomicLong now = new AtomicLong();
+    Clock clock = mock(Clock.class, withSettings().stubOnly());
+    when(clock.millis()).thenAnswer(invocation -> now.get());
+
+    // 3 tokens per second per shard take 333.3 ms each, which whole milliseconds never match.
+    int capacity = 24;
+    int tokensPerPeriod = 24;
+    int shards = 8;
+    int threads = 4;
+    int requestsPerThread = 50_000;
+    ShardedTokenBucketRateLimiter limiter = new ShardedTokenBucketRateLimiter(
+        capacity, Duration.ofSeconds(1), tokensPerPeriod, shards, clock);
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          int allowed = 0;
+          for (int i = 0; i < requestsPerThread; i++) {
+            // Time moves on by 7 ms per request, faster than the bucket refills.
+            now.addAndGet(7);
+            if (limiter.allowed(BOB)) {
+              allowed++;
+            }
+          }
+          return allowed;
+        }));
+      }
+
+      int allowed = 0;
+      for (Future<Integer> future : futures) {
+        allowed += future.get();
+      }
+
+      long refilled = Math.ceilDiv(now.get() * tokensPerPeriod, 1000);
+      assertTrue(allowed <= capacity + refilled + shards - 1,
+          "At most the " + (capacity + refilled) + " requests an exact token bucket could admit in "
+              + now.get() + " ms, plus " + (shards - 1) + ", must be admitted, but were " + allowed);
+      assertTrue(allowed >= refilled / 2,
+          "Most of the refilled tokens must be admitted, but were " + allowed + " of " + refilled);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void constructor_nonPositiveTokensPerPeriod_isRejected() {
+    Clock clock = mock(Clock.class);
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new ShardedTokenBucketRateLimiter(4, Duration.ofSeconds(1), 0, 2, clock),
+        "A bucket which is never refilled must be rejected");
+  }
+
+  @Test
+  void allowed_numericKeys_limitsEachKeyIndividuallyApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    ShardedTokenBucketRateLimiter limiter
+        = new ShardedTokenBucketRateLimiter(2, Duration.ofSeconds(1), 2, 2, clock);
+
+    for (long key = 1; key <= 100; key++) {
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 1 must pass");
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 2 must pass");
+      assertFalse(limiter.allowed(key), "Key " + key + "'s request 3 must not be allowed");
+    }
+
+    assertTrue(limiter.allowed("42"),
+        "The request of string key 42 must pass, because numeric keys are limited apart");
+  }
+}
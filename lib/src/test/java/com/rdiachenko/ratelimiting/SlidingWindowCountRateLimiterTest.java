@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 import java.time.Clock;
 import java.time.Duration;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
@@ -90,4 +91,54 @@ public class SlidingWindowCountRateLimiterTest {
     assertFalse(limiter.allowed(ALICE),
         "Alice's request 5 at timestamp=3003 must not be allowed");
   }
+
+  @Test
+  void allowed_withDecision_describesEstimatedRemainingRequestsAndRetryTime() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 999L, 1000L, 1001L);
+
+    SlidingWindowCountRateLimiter limiter
+        = new SlidingWindowCountRateLimiter(2, Duration.ofSeconds(1), clock);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 1 at timestamp=0 must pass");
+    assertEquals(1, decision.remaining(),
+        "Bob can make 1 more request within the sliding window");
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 2 at timestamp=999 must pass");
+    assertEquals(0, decision.remaining(),
+        "Bob has used all requests of the sliding window");
+
+    assertFalse(limiter.allowed(BOB, decision),
+        "Bob's request 3 at timestamp=1000 must not be allowed");
+    assertEquals(Duration.ofMillis(1).toNanos(), decision.retryAfterNanos(),
+        "At timestamp=1001 a new fixed window starts and the weighted" +
+            " count of the previous one drops to 1");
+    assertEquals(Duration.ofMillis(1000).toNanos(), decision.resetNanos(),
+        "The fixed window started at timestamp=0 stops counting at timestamp=2000");
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 4 at timestamp=1001 must pass, as the decision predicted");
+  }
+
+  @Test
+  void allowed_numericKeys_limitsEachKeyIndividuallyApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    SlidingWindowCountRateLimiter limiter = new SlidingWindowCountRateLimiter(2, Duration.ofSeconds(1), clock);
+
+    // Enough keys to grow the primitive map several times.
+    for (long key = 1; key <= 1000; key++) {
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 1 must pass");
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 2 must pass");
+    }
+    for (long key = 1; key <= 1000; key++) {
+      assertFalse(limiter.allowed(key), "Key " + key + "'s request 3 must not be allowed");
+    }
+
+    assertTrue(limiter.allowed("42"),
+        "The request of string key 42 must pass, because numeric keys are limited apart");
+  }
 }
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 import java.time.Clock;
 import java.time.Duration;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
@@ -86,4 +87,52 @@ public class SlidingWindowLogRateLimiterTest {
     assertFalse(limiter.allowed(ALICE),
         "Alice's request 5 at timestamp=3003 must not be allowed");
   }
+
+  @Test
+  void allowed_withDecision_describesRemainingRequestsAndWindowReset() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 400L, 500L);
+
+    SlidingWindowLogRateLimiter limiter
+        = new SlidingWindowLogRateLimiter(2, Duration.ofSeconds(1), clock);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 1 at timestamp=0 must pass");
+    assertEquals(1, decision.remaining(),
+        "Bob can make 1 more request within the sliding window");
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 2 at timestamp=400 must pass");
+    assertEquals(0, decision.remaining(),
+        "Bob has used all requests of the sliding window");
+    assertEquals(Duration.ofMillis(1001).toNanos(), decision.resetNanos(),
+        "The request at timestamp=400 drops out of the window at timestamp=1401");
+
+    assertFalse(limiter.allowed(BOB, decision),
+        "Bob's request 3 at timestamp=500 must not be allowed");
+    assertEquals(Duration.ofMillis(501).toNanos(), decision.retryAfterNanos(),
+        "Bob must wait until the request at timestamp=0 drops out of the window");
+    assertEquals(Duration.ofMillis(901).toNanos(), decision.resetNanos(),
+        "The request at timestamp=400 drops out of the window at timestamp=1401");
+  }
+
+  @Test
+  void allowed_numericKeys_limitsEachKeyIndividuallyApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    SlidingWindowLogRateLimiter limiter = new SlidingWindowLogRateLimiter(2, Duration.ofSeconds(1), clock);
+
+    // Enough keys to grow the primitive map several times.
+    for (long key = 1; key <= 1000; key++) {
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 1 must pass");
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 2 must pass");
+    }
+    for (long key = 1; key <= 1000; key++) {
+      assertFalse(limiter.allowed(key), "Key " + key + "'s request 3 must not be allowed");
+    }
+
+    assertTrue(limiter.allowed("42"),
+        "The request of string key 42 must pass, because numeric keys are limited apart");
+  }
 }
@@ -0,0 +1,113 @@
+package com.rdiachenko.ratelimiting;
+
+import com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpecializedRateLimitersTest {
+
+  private static final String[] USERS = {"Bob", "Alice", "Carol"};
+
+  // Periods which are and are not powers of two in nanoseconds,
+  // and rates which do and do not divide them evenly.
+  private static final Duration[] PERIODS = {
+      Duration.ofNanos(1L << 30), Duration.ofSeconds(1),
+      Duration.ofMillis(700), Duration.ofMinutes(1)};
+  private static final int[] RATES = {1, 3, 7, 1000};
+
+  @Test
+  void tokenBucket_greedyRefill_decidesAsGenericTokenBucket() {
+    for (Duration period : PERIODS) {
+      for (int rate : RATES) {
+        assertSameDecisions(period + " greedy " + rate,
+            clock -> new TokenBucketRateLimiter(5, period, rate, clock, RefillStrategy.GREEDY),
+            clock -> SpecializedRateLimiters.tokenBucket(5, period, rate, clock,
+                RefillStrategy.GREEDY));
+      }
+    }
+  }
+
+  @Test
+  void tokenBucket_greedyRatesAroundTheOverflowThreshold_fallBackToGenericTokenBucket() {
+    // A token per 2^62 - 1 ns keeps nanos * (events + 1) within a long, a token per 2^62 ns does not.
+    Duration compact = Duration.ofNanos((1L << 62) - 1);
+    Duration overflowing = Duration.ofNanos(1L << 62);
+
+    assertFalse(SpecializedRateLimiters.tokenBucket(5, compact, 1, Clock.systemUTC(),
+            RefillStrategy.GREEDY) instanceof TokenBucketRateLimiter,
+        "A rate below the threshold must be specialized");
+    assertInstanceOf(TokenBucketRateLimiter.class,
+        SpecializedRateLimiters.tokenBucket(5, overflowing, 1, Clock.systemUTC(),
+            RefillStrategy.GREEDY),
+        "A rate above the threshold must fall back to the generic limiter");
+
+    for (Duration period : new Duration[] {compact, overflowing}) {
+      assertSameDecisions(period + " greedy 1",
+          clock -> new TokenBucketRateLimiter(5, period, 1, clock, RefillStrategy.GREEDY),
+          clock -> SpecializedRateLimiters.tokenBucket(5, period, 1, clock, RefillStrategy.GREEDY));
+    }
+  }
+
+  @Test
+  void tokenBucketAndLeakyBucket_nothingToSpecialize_areGenericLimiters() {
+    assertInstanceOf(TokenBucketRateLimiter.class,
+        SpecializedRateLimiters.tokenBucket(5, Duration.ofSeconds(1), 1, Clock.systemUTC(),
+            RefillStrategy.INTERVALLY),
+        "The interval refill must be left to the generic limiter");
+    assertInstanceOf(LeakyBucketRateLimiter.class,
+        SpecializedRateLimiters.leakyBucket(5, Duration.ofSeconds(1), 1, Clock.systemUTC()),
+        "The leaky bucket must be left to the generic limiter");
+  }
+
+  @Test
+  void tokenBucket_warmupRefill_isRejected() {
+    assertThrows(IllegalArgumentException.class,
+        () -> SpecializedRateLimiters.tokenBucket(5, Duration.ofSeconds(1), 1, Clock.systemUTC(),
+            RefillStrategy.WARMUP),
+        "Warm-up refill needs a warm-up period, so only the generic limiter supports it");
+  }
+
+  /**
+   * Sends the same random traffic of string and numeric keys to a generic
+   * and a specialized limiter, and compares every decision.
+   */
+  private static void assertSameDecisions(String configuration,
+                                          Function<Clock, RateLimiter> generic,
+                                          Function<Clock, RateLimiter> specialized) {
+    Random random = new Random(42);
+    Clock clock = mock(Clock.class);
+    long[] now = {0};
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+    RateLimiter expectedLimiter = generic.apply(clock);
+    RateLimiter actualLimiter = specialized.apply(clock);
+    RateLimitDecision expected = new RateLimitDecision();
+    RateLimitDecision actual = new RateLimitDecision();
+
+    for (int i = 0; i < 2_000; i++) {
+      now[0] += random.nextInt(4) == 0 ? random.nextInt(3_000) : random.nextInt(20);
+      if (random.nextBoolean()) {
+        String user = USERS[random.nextInt(USERS.length)];
+        expectedLimiter.allowed(user, expected);
+        actualLimiter.allowed(user, actual);
+      } else {
+        long key = random.nextInt(3);
+        expectedLimiter.allowed(key, expected);
+        actualLimiter.allowed(key, actual);
+      }
+      assertEquals(expected.toString(), actual.toString(),
+          configuration + ": request " + i + " at timestamp=" + now[0]
+              + " must be decided as by the generic limiter");
+    }
+  }
+}
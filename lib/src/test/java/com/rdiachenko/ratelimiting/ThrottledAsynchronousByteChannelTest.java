@@ -0,0 +1,100 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ThrottledAsynchronousByteChannelTest {
+
+  @Test
+  void write_bucketEmpty_schedulesTransferForWhenChunkIsRefilled() throws Exception {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    // 100 bytes per second.
+    TokenBucketRateLimiter bucket
+        = new TokenBucketRateLimiter(100, Duration.ofSeconds(1), 100, clock, GREEDY);
+    ThrottledAsynchronousByteChannel channel = new ThrottledAsynchronousByteChannel(
+        new ImmediateChannel(), bucket, "tenant", 50, scheduler);
+    ByteBuffer src = ByteBuffer.allocate(300);
+
+    assertEquals(50, channel.write(src).get(), "The first write must get the first chunk");
+    assertEquals(50, channel.write(src).get(), "The second write must get the second chunk");
+
+    Future<Integer> third = channel.write(src);
+    assertFalse(third.isDone(), "The third write must wait, because the bucket is empty");
+    ArgumentCaptor<Runnable> resume = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(resume.capture(),
+        eq(Duration.ofMillis(500).toNanos()), eq(TimeUnit.NANOSECONDS));
+
+    now[0] = 500;
+    resume.getValue().run();
+
+    assertTrue(third.isDone(), "The third write must complete once a chunk is refilled");
+    assertEquals(50, third.get(), "The third write must get the refilled chunk");
+    assertEquals(150, src.position(), "150 bytes must have been written");
+    assertEquals(300, src.limit(), "The caller's buffer limit must be restored");
+  }
+
+  /**
+   * Transfers all remaining bytes and completes immediately.
+   */
+  private static class ImmediateChannel implements AsynchronousByteChannel {
+
+    @Override
+    public <A> void read(ByteBuffer dst, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+      handler.completed(transfer(dst), attachment);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, A attachment,
+                          CompletionHandler<Integer, ? super A> handler) {
+      handler.completed(transfer(src), attachment);
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src) {
+      throw new UnsupportedOperationException();
+    }
+
+    private static int transfer(ByteBuffer buffer) {
+      int size = buffer.remaining();
+      buffer.position(buffer.limit());
+      return size;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
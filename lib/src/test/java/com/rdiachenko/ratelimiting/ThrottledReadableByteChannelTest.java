@@ -0,0 +1,45 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.time.Clock;
+import java.time.Duration;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ThrottledReadableByteChannelTest {
+
+  @Test
+  void read_bucketWithFewerTokensThanBuffer_readsOnlyPermittedBytes() throws Exception {
+    Clock clock = Clock.systemUTC();
+    // 1000 bytes per 10 seconds, so the bucket is not refilled during the test.
+    TokenBucketRateLimiter bucket
+        = new TokenBucketRateLimiter(1000, Duration.ofSeconds(10), 1000, clock, GREEDY);
+    byte[] data = new byte[1500];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+
+    try (ThrottledReadableByteChannel channel = new ThrottledReadableByteChannel(
+        Channels.newChannel(new ByteArrayInputStream(data)), bucket, "tenant", 400)) {
+      ByteBuffer dst = ByteBuffer.allocate(1000);
+
+      assertEquals(400, channel.read(dst), "The first read must be limited to the first chunk");
+      assertEquals(1000, dst.limit(), "The caller's buffer limit must be restored");
+      assertEquals(400, channel.read(dst), "The second read must be limited to the second chunk");
+      assertEquals(200, channel.read(dst), "The third read must get the rest of the burst");
+
+      dst.flip();
+      byte[] read = new byte[dst.remaining()];
+      dst.get(read);
+      byte[] expected = new byte[1000];
+      System.arraycopy(data, 0, expected, 0, 1000);
+      assertArrayEquals(expected, read, "The bytes must be read in order");
+    }
+  }
+}
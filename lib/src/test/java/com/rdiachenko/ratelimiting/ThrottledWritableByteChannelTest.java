@@ -0,0 +1,98 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ThrottledWritableByteChannelTest {
+
+  @Test
+  void write_moreBytesThanBucketHolds_delaysWritesToTheRefillRate() throws Exception {
+    // 10000 bytes per second, with a burst of 1000 bytes.
+    TokenBucketRateLimiter bucket = new TokenBucketRateLimiter(
+        1000, Duration.ofMillis(100), 1000, Clock.systemUTC(), GREEDY);
+    RecordingChannel recording = new RecordingChannel();
+    ByteBuffer src = ByteBuffer.allocateDirect(3000);
+
+    try (ThrottledWritableByteChannel channel
+             = new ThrottledWritableByteChannel(recording, bucket, "tenant", 500)) {
+      long start = System.nanoTime();
+      while (src.hasRemaining()) {
+        channel.write(src);
+      }
+      long elapsed = System.nanoTime() - start;
+
+      assertTrue(elapsed >= Duration.ofMillis(150).toNanos(),
+          "The 2000 bytes over the burst must take about 200 milliseconds, but took "
+              + Duration.ofNanos(elapsed));
+    }
+
+    assertEquals(3000, recording.written, "All bytes must be written");
+    for (int size : recording.sizes) {
+      assertTrue(size <= 500, "A single write must not exceed the chunk size, but was " + size);
+    }
+    assertTrue(recording.sizes.size() <= 8,
+        "Bytes must be written in chunks rather than trickle, but took "
+            + recording.sizes.size() + " writes");
+    assertSame(src, recording.buffer, "The caller's buffer must be passed through without copying");
+    assertEquals(3000, src.limit(), "The caller's buffer limit must be restored");
+  }
+
+  @Test
+  void tryTake_bucketRunsDry_waitsForAWholeChunkRatherThanTheNextToken() {
+    // 30000 bytes per second, so a chunk of 1000 bytes is refilled in 33.3 milliseconds,
+    // with the next token a fraction of a millisecond away.
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    TokenBucketRateLimiter bucket = new TokenBucketRateLimiter(
+        1000, Duration.ofSeconds(1), 30_000, clock, GREEDY);
+    ByteThrottle throttle = new ByteThrottle(bucket, "tenant", 1000);
+
+    assertEquals(1000, throttle.tryTake(5000), "The full bucket must grant a whole chunk");
+    assertEquals(-Duration.ofMillis(34).toNanos(), throttle.tryTake(4000),
+        "The throttle must wait until a whole chunk is refilled, rounded up to a millisecond");
+
+    when(clock.millis()).thenReturn(34L);
+    assertEquals(1000, throttle.tryTake(4000), "A whole chunk must be granted after the wait");
+  }
+
+  /**
+   * Records the sizes of the writes and the buffer written from.
+   */
+  private static class RecordingChannel implements WritableByteChannel {
+    private final List<Integer> sizes = new ArrayList<>();
+    private ByteBuffer buffer;
+    private int written;
+
+    @Override
+    public int write(ByteBuffer src) {
+      buffer = src;
+      int size = src.remaining();
+      src.position(src.limit());
+      sizes.add(size);
+      written += size;
+      return size;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ThrottlingProcessorTest {
+
+  @Test
+  void subscribe_itemsOverLimit_requestsOnlyAsManyItemsAsPermitsAllow() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(3, Duration.ofSeconds(1), 3, clock, GREEDY);
+    ThrottlingProcessor<Integer> processor
+        = new ThrottlingProcessor<>(limiter, "stream", 10, scheduler);
+    ListPublisher<Integer> publisher = new ListPublisher<>(List.of(1, 2, 3, 4, 5));
+    CollectingSubscriber<Integer> subscriber = new CollectingSubscriber<>();
+
+    publisher.subscribe(processor);
+    processor.subscribe(subscriber);
+
+    assertEquals(List.of(1, 2, 3), subscriber.items,
+        "Only 3 items must pass at timestamp=0, because the bucket holds 3 tokens");
+    assertEquals(List.of(10L), publisher.requests,
+        "Upstream must be asked for a full batch, of which the items over the limit are held back");
+
+    ArgumentCaptor<Runnable> resume = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(resume.capture(),
+        eq(Duration.ofSeconds(1).toNanos()), eq(TimeUnit.NANOSECONDS));
+
+    now[0] = 1000;
+    resume.getValue().run();
+
+    assertEquals(List.of(1, 2, 3, 4, 5), subscriber.items,
+        "The remaining items must pass at timestamp=1000, because the bucket was refilled");
+    assertEquals(List.of(10L), publisher.requests,
+        "Upstream must not be asked again, because it has completed");
+    assertTrue(subscriber.completed,
+        "Completion must be passed downstream once all items are emitted");
+  }
+
+  @Test
+  void subscribe_limiterRunsDry_waitsForAWholeBatchOfPermitsBeforeAskingForMore() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(10, Duration.ofSeconds(1), 10, clock, GREEDY);
+    ThrottlingProcessor<Integer> processor
+        = new ThrottlingProcessor<>(limiter, "stream", 10, scheduler);
+    List<Integer> items = new ArrayList<>();
+    for (int i = 0; i < 35; i++) {
+      items.add(i);
+    }
+    ListPublisher<Integer> publisher = new ListPublisher<>(items);
+    CollectingSubscriber<Integer> subscriber = new CollectingSubscriber<>();
+
+    publisher.subscribe(processor);
+    processor.subscribe(subscriber);
+
+    ArgumentCaptor<Runnable> resume = ArgumentCaptor.forClass(Runnable.class);
+    for (int batch = 1; batch <= 3; batch++) {
+      assertEquals(10 * batch, subscriber.items.size(),
+          "Exactly " + batch + " batches of 10 items must pass by timestamp=" + now[0]);
+      verify(scheduler, times(batch)).schedule(resume.capture(),
+          eq(Duration.ofSeconds(1).toNanos()), eq(TimeUnit.NANOSECONDS));
+
+      now[0] += 1000;
+      resume.getValue().run();
+    }
+
+    assertEquals(items, subscriber.items,
+        "All items must pass once enough permits are refilled");
+    assertEquals(List.of(10L, 10L, 10L, 10L), publisher.requests,
+        "Upstream must be asked for batches of 10 items, the number of permits refilled per period");
+    assertTrue(subscriber.completed,
+        "Completion must be passed downstream once all items are emitted");
+  }
+
+  @Test
+  void subscribe_itemsOfDifferentKeys_takePermitsOfTheirOwnKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    LeakyBucketRateLimiter limiter
+        = new LeakyBucketRateLimiter(1, Duration.ofSeconds(1), 1, clock);
+    ThrottlingProcessor<String> processor
+        = new ThrottlingProcessor<>(limiter, item -> item.split("-")[0], 10, scheduler);
+    ListPublisher<String> publisher = new ListPublisher<>(List.of("Bob-1", "Alice-1"));
+    CollectingSubscriber<String> subscriber = new CollectingSubscriber<>();
+
+    publisher.subscribe(processor);
+    processor.subscribe(subscriber);
+
+    assertEquals(List.of("Bob-1", "Alice-1"), subscriber.items,
+        "Both items must pass, because Bob and Alice have their own buckets");
+    assertTrue(subscriber.completed,
+        "Completion must be passed downstream once all items are emitted");
+    verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any());
+  }
+
+  @Test
+  void subscribe_noDownstreamDemand_requestsNothingFromUpstream() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(3, Duration.ofSeconds(1), 3, clock, GREEDY);
+    ThrottlingProcessor<Integer> processor
+        = new ThrottlingProcessor<>(limiter, "stream", 10, scheduler);
+    ListPublisher<Integer> publisher = new ListPublisher<>(List.of(1, 2, 3));
+    CollectingSubscriber<Integer> subscriber = new CollectingSubscriber<>(0);
+
+    publisher.subscribe(processor);
+    processor.subscribe(subscriber);
+
+    assertTrue(publisher.requests.isEmpty(),
+        "Upstream must not be asked for items nobody wants");
+    assertFalse(subscriber.completed,
+        "The stream must not complete before its items are emitted");
+  }
+
+  /**
+   * Publishes a list of items synchronously and records the requested amounts.
+   */
+  private static class ListPublisher<T> implements Flow.Publisher<T> {
+    private final List<T> items;
+    private final List<Long> requests = new ArrayList<>();
+    private int next;
+
+    ListPublisher(List<T> items) {
+      this.items = items;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+          requests.add(n);
+          for (long i = 0; i < n && next < items.size(); i++) {
+            subscriber.onNext(items.get(next++));
+          }
+          if (next == items.size()) {
+            subscriber.onComplete();
+          }
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+    }
+  }
+
+  /**
+   * Collects the items and requests the given number of them upfront.
+   */
+  private static class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+    private final long initialRequest;
+    private final List<T> items = new ArrayList<>();
+    private boolean completed;
+
+    CollectingSubscriber() {
+      this(Long.MAX_VALUE);
+    }
+
+    CollectingSubscriber(long initialRequest) {
+      this.initialRequest = initialRequest;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      if (initialRequest > 0) {
+        subscription.request(initialRequest);
+      }
+    }
+
+    @Override
+    public void onNext(T item) {
+      items.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      throw new AssertionError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+}
@@ -4,10 +4,13 @@ import org.junit.jupiter.api.Test;
 
 import java.time.Clock;
 import java.time.Duration;
+import java.util.Arrays;
 
 import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
 import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.INTERVALLY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -186,4 +189,287 @@ public class TokenBucketRateLimiterTest {
         "Alice's request 5 at timestamp=3003 must not be allowed," +
             " because bucket has 0 tokens available");
   }
+
+  @Test
+  void allowed_withDecision_describesRemainingTokensAndRefillTimes() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 100L);
+
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(2, Duration.ofSeconds(1), 2, clock, GREEDY);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 1 at timestamp=0 must pass");
+    assertEquals(1, decision.remaining(),
+        "Bob's bucket has 1 token left");
+    assertEquals(Duration.ofMillis(500).toNanos(), decision.resetNanos(),
+        "The missing token is refilled at timestamp=500");
+
+    assertTrue(limiter.allowed(BOB, decision),
+        "Bob's request 2 at timestamp=0 must pass");
+    assertEquals(0, decision.remaining(),
+        "Bob's bucket is empty");
+    assertEquals(Duration.ofMillis(1000).toNanos(), decision.resetNanos(),
+        "The 2 missing tokens are refilled at timestamp=1000");
+
+    assertFalse(limiter.allowed(BOB, decision),
+        "Bob's request 3 at timestamp=100 must not be allowed");
+    assertEquals(Duration.ofMillis(400).toNanos(), decision.retryAfterNanos(),
+        "Bob must wait until the next token is refilled at timestamp=500");
+    assertEquals(Duration.ofMillis(900).toNanos(), decision.resetNanos(),
+        "The 2 missing tokens are refilled at timestamp=1000");
+  }
+
+  @Test
+  void allowed_withBatch_describesTimeUntilTheWholeBatchIsRefilled() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 100L);
+
+    // A token is refilled every 333.3 milliseconds.
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(3, Duration.ofSeconds(1), 3, clock, GREEDY);
+    RateLimitDecision decision = new RateLimitDecision().batch(2);
+
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(limiter.allowed(BOB, decision), "Bob's request " + i + " at timestamp=0 must pass");
+    }
+    assertFalse(limiter.allowed(BOB, decision),
+        "Bob's request 4 at timestamp=100 must not be allowed");
+    assertEquals(233_333_334, decision.retryAfterNanos(),
+        "Bob must wait until the next token is refilled at timestamp=333.3");
+    assertEquals(Duration.ofMillis(567).toNanos(), decision.batchRetryAfterNanos(),
+        "A batch of 2 tokens is refilled at timestamp=666.7, which the clock shows at 667");
+
+    decision.batch(10);
+    assertFalse(limiter.allowed(BOB, decision),
+        "Bob's request 5 at timestamp=100 must not be allowed");
+    assertEquals(Duration.ofMillis(900).toNanos(), decision.batchRetryAfterNanos(),
+        "A batch larger than the capacity must wait only until the bucket is full");
+  }
+
+  @Test
+  void allowed_fractionalTokensPerMillisecond_enforcesExactLongRunRate() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+
+    // 3 tokens per 7 milliseconds never add up to a whole number of milliseconds per token.
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(3, Duration.ofMillis(7), 3, clock, GREEDY);
+
+    int allowed = 0;
+    for (; now[0] <= 700; now[0]++) {
+      while (limiter.allowed(BOB)) {
+        allowed++;
+      }
+    }
+
+    assertEquals(3 + 300, allowed,
+        "Bob must get the 3 initial tokens and exactly 300 tokens refilled in 700 milliseconds");
+  }
+
+  @Test
+  void allowed_subMillisecondPeriod_enforcesHighRate() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+
+    // 10 million tokens per second.
+    TokenBucketRateLimiter limiter
+        = new TokenBucketRateLimiter(10_000, Duration.ofNanos(100), 1, clock, GREEDY);
+
+    int allowed = 0;
+    for (; now[0] <= 10; now[0]++) {
+      while (limiter.allowed(BOB)) {
+        allowed++;
+      }
+    }
+
+    assertEquals(1 + 100_000, allowed,
+        "Bob must get the initial token and exactly 10000 tokens per millisecond");
+  }
+
+  @Test
+  void constructor_nonPositiveTokensPerPeriod_isRejected() {
+    Clock clock = mock(Clock.class);
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new TokenBucketRateLimiter(2, Duration.ofSeconds(1), 0, clock, GREEDY),
+        "A greedy bucket which is never refilled must be rejected");
+    assertThrows(IllegalArgumentException.class,
+        () -> new TokenBucketRateLimiter(2, Duration.ofSeconds(1), 0, clock, INTERVALLY),
+        "An interval bucket which is never refilled must be rejected");
+    assertThrows(IllegalArgumentException.class,
+        () -> new TokenBucketRateLimiter(2, Duration.ofSeconds(1), -1, clock,
+            Duration.ofSeconds(10), 1),
+        "A negative stable rate of a warming up bucket must be rejected");
+  }
+
+  @Test
+  void allowed_priorityClasses_keepReservedTokensForHigherClasses() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    // Class 0 can use all tokens, class 1 must leave 3 and class 2 must leave 6.
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(
+        10, Duration.ofSeconds(1), 10, clock, GREEDY, new int[] {0, 3, 6});
+    RateLimitDecision decision = new RateLimitDecision();
+
+    for (int i = 1; i <= 4; i++) {
+      assertTrue(limiter.allowed(BOB, 2),
+          "Bob's class 2 request " + i + " must pass, because the bucket has tokens above 6");
+    }
+    assertFalse(limiter.allowed(BOB, 2, decision),
+        "Bob's class 2 request 5 must not be allowed, because only the reserved 6 tokens are left");
+    assertEquals(0, decision.remaining(),
+        "No tokens are left for class 2");
+    assertEquals(Duration.ofMillis(100).toNanos(), decision.retryAfterNanos(),
+        "Class 2 must wait until a token above its reserve is refilled at timestamp=100");
+
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(limiter.allowed(BOB, 1),
+          "Bob's class 1 request " + i + " must pass, because the bucket has tokens above 3");
+    }
+    assertFalse(limiter.allowed(BOB, 1),
+        "Bob's class 1 request 4 must not be allowed, because only the reserved 3 tokens are left");
+
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(limiter.allowed(BOB),
+          "Bob's request " + i + " without a class must pass as class 0, using the reserved tokens");
+    }
+    assertFalse(limiter.allowed(BOB, 0),
+        "Bob's class 0 request must not be allowed, because the bucket is empty");
+
+    assertThrows(IllegalArgumentException.class, () -> limiter.allowed(BOB, 3),
+        "Class 3 is not configured");
+  }
+
+  @Test
+  void constructor_invalidPriorityReserves_isRejected() {
+    Clock clock = mock(Clock.class);
+
+    for (int[] reserves : new int[][] {{}, {1}, {0, -5}, {0, 2}, {0, 3}, {0, 1, 0}}) {
+      assertThrows(IllegalArgumentException.class,
+          () -> new TokenBucketRateLimiter(2, Duration.ofSeconds(1), 2, clock, GREEDY, reserves),
+          "Reserves " + Arrays.toString(reserves) + " must be rejected, because they must start"
+              + " with 0, not decrease and stay below the capacity of 2");
+    }
+  }
+
+  @Test
+  void allowed_warmupRefill_rampsFromColdToStableRateAfterIdleness() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+
+    // The rate grows from 2 to 10 tokens per second over 4 seconds,
+    // so t seconds into the warm-up 2t + t^2 tokens have been refilled.
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(
+        10, Duration.ofSeconds(1), 10, clock, Duration.ofSeconds(4), 2);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    assertEquals(2, drain(limiter, decision),
+        "Bob's new bucket must start cold with 2 tokens at timestamp=0");
+    assertEquals((Math.sqrt(2) - 1) * Duration.ofSeconds(1).toNanos(), decision.retryAfterNanos(), 1,
+        "The next token is refilled when 2t + t^2 = 1, at t = sqrt(2) - 1 seconds");
+
+    long[] expected = {3, 5, 7, 9, 10};
+    for (int i = 0; i < expected.length; i++) {
+      now[0] += 1000;
+      assertEquals(expected[i], drain(limiter, decision),
+          "Bob must get " + expected[i] + " tokens at timestamp=" + now[0]);
+    }
+
+    now[0] = 10_000;
+    assertEquals(2, drain(limiter, decision),
+        "Bob's bucket must turn cold again after being idle for the warm-up period");
+    now[0] += 1000;
+    assertEquals(3, drain(limiter, decision),
+        "Bob's bucket must warm up again from the cold rate");
+  }
+
+  @Test
+  void acquire_warmupRefillOverADay_neverDriftsFromTheExactIntegralOfTheRate() {
+    long[] now = {0};
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now[0]);
+
+    // The rate grows from 100 to 1000 tokens per second over 10 seconds, so t milliseconds
+    // into the warm-up (2 * 10^4 * 100 * t + 900 * t^2) / (2 * 10^4 * 1000) tokens have been
+    // refilled, 5500 in total, and then 1 token per millisecond.
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(
+        1_000_000, Duration.ofSeconds(1), 1000, clock, Duration.ofSeconds(10), 100);
+
+    // Steps are short through the warm-up, and then long but never dividing a second.
+    long acquired = 0;
+    for (; now[0] <= Duration.ofDays(1).toMillis(); now[0] += now[0] < 20_000 ? 7 : 997) {
+      acquired += limiter.acquire(BOB, Integer.MAX_VALUE, null);
+
+      long t = now[0];
+      long refilled = t < 10_000
+          ? (2_000_000 * t + 900 * t * t) / 20_000_000
+          : 5500 + (t - 10_000);
+      assertEquals(100 + refilled, acquired,
+          "Bob must get the 100 cold tokens and exactly the tokens refilled by timestamp=" + t);
+    }
+  }
+
+  private static int drain(TokenBucketRateLimiter limiter, RateLimitDecision decision) {
+    int allowed = 0;
+    while (limiter.allowed(BOB, decision)) {
+      allowed++;
+    }
+    return allowed;
+  }
+
+  @Test
+  void allowed_numericKeys_limitsEachKeyIndividuallyApartFromStringKeys() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(2, Duration.ofSeconds(1), 2, clock, GREEDY);
+
+    // Enough keys to grow the primitive map several times.
+    for (long key = 1; key <= 1000; key++) {
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 1 must pass");
+      assertTrue(limiter.allowed(key), "Key " + key + "'s request 2 must pass");
+    }
+    for (long key = 1; key <= 1000; key++) {
+      assertFalse(limiter.allowed(key), "Key " + key + "'s request 3 must not be allowed");
+    }
+
+    assertTrue(limiter.allowed("42"),
+        "The request of string key 42 must pass, because numeric keys are limited apart");
+  }
+
+  @Test
+  void restore_snapshotsOfAnotherLimiter_keepStateAndMergeWithExistingBuckets() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    TokenBucketRateLimiter source = new TokenBucketRateLimiter(4, Duration.ofSeconds(1), 4, clock, GREEDY);
+    TokenBucketRateLimiter target = new TokenBucketRateLimiter(4, Duration.ofSeconds(1), 4, clock, GREEDY);
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(source.allowed(BOB), "Bob's request " + (i + 1) + " must pass at the source");
+    }
+    for (int i = 0; i < 2; i++) {
+      assertTrue(source.allowed(ALICE), "Alice's request " + (i + 1) + " must pass at the source");
+    }
+    assertTrue(target.allowed(ALICE), "Alice's request 3 must pass at the target");
+
+    for (BucketSnapshot snapshot : source.snapshots()) {
+      target.restore(snapshot);
+    }
+
+    assertTrue(target.allowed(BOB), "Bob's request 4 must pass, because his 1 token moved");
+    assertFalse(target.allowed(BOB), "Bob's request 5 must not be allowed");
+    assertTrue(target.allowed(ALICE),
+        "Alice's request 4 must pass, because the source's bucket with 2 tokens wins");
+    assertTrue(target.allowed(ALICE), "Alice's request 5 must pass");
+    assertFalse(target.allowed(ALICE), "Alice's request 6 must not be allowed");
+
+    when(clock.millis()).thenReturn(250L);
+    assertTrue(target.allowed(BOB), "Bob's request 6 must pass, because a token was refilled");
+    assertFalse(target.allowed(BOB), "Bob's request 7 must not be allowed");
+  }
 }
@@ -0,0 +1,124 @@
+package com.rdiachenko.ratelimiting;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TraceReplayTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void replay_traceOfSeveralKeys_reportsAdmittedAndRejectedRequestsPerConfiguration() throws IOException {
+    Path trace = dir.resolve("trace.bin");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(trace)))) {
+      // Keys 1..8 make 3 requests every 100 ms for 10 seconds.
+      for (long timestamp = 0; timestamp < 10_000; timestamp += 100) {
+        for (long key = 1; key <= 8; key++) {
+          out.writeLong(timestamp);
+          out.writeLong(key);
+          out.writeInt(3);
+        }
+      }
+    }
+
+    Map<String, Function<Clock, RateLimiter>> configurations
+        = new LinkedHashMap<>();
+    configurations.put("fixed-window", clock
+        -> new FixedWindowRateLimiter(10, Duration.ofSeconds(1), clock));
+    configurations.put("token-bucket", clock
+        -> new TokenBucketRateLimiter(20, Duration.ofSeconds(1), 20, clock, GREEDY));
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      Map<String, TraceReplay.Report> reports = new TraceReplay(configurations, pool, 3).replay(trace);
+
+      TraceReplay.Report fixedWindow = reports.get("fixed-window");
+      assertEquals(8, fixedWindow.keys().size(), "Every key must be reported");
+      // Windows start at 0, 1100, ..., 9900, because a window lasts until 1 ms past its duration.
+      assertEquals(new TraceReplay.KeyStats(9 * 10 + 3, 300 - 9 * 10 - 3), fixedWindow.keys().get(5L),
+          "Key 5 must be admitted 10 requests in each of the 9 full windows, and 3 in the last one");
+      assertEquals(8 * 93, fixedWindow.admitted(), "All keys must be admitted the same");
+      assertEquals(8 * 207, fixedWindow.rejected(), "All keys must be rejected the same");
+      assertEquals(93.0 / 300, fixedWindow.admitRatio(), 1e-9,
+          "The admit ratio must be the same as the one of every key");
+
+      // The bucket starts full with 20 tokens, and is refilled with 2 tokens every 100 ms.
+      TraceReplay.Report tokenBucket = reports.get("token-bucket");
+      assertEquals(new TraceReplay.KeyStats(20 + 99 * 2, 300 - 20 - 99 * 2),
+          tokenBucket.keys().get(1L),
+          "Key 1 must be admitted the initial tokens and then the refilled ones");
+      assertEquals(8 * (20 + 99 * 2), tokenBucket.admitted(),
+          "All keys must be admitted the same");
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void replay_limitersOnZonedClock_reportTheSameWhateverTheNumberOfShards() throws IOException {
+    Path trace = dir.resolve("trace.bin");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(trace)))) {
+      // 1000 keys make a request every 10 ms for 2 seconds, more records than fit in a batch.
+      for (long timestamp = 0; timestamp < 2_000; timestamp += 10) {
+        for (long key = 0; key < 1_000; key++) {
+          out.writeLong(timestamp);
+          out.writeLong(key);
+          out.writeInt(1);
+        }
+      }
+    }
+
+    Map<String, Function<Clock, RateLimiter>> configurations = Map.of("zoned", clock
+        -> new FixedWindowRateLimiter(7, Duration.ofMillis(500), clock.withZone(ZoneId.of("Europe/Paris"))));
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      TraceReplay.Report oneShard = new TraceReplay(configurations, pool, 1).replay(trace).get("zoned");
+      TraceReplay.Report sevenShards = new TraceReplay(configurations, pool, 7).replay(trace).get("zoned");
+
+      assertEquals(1_000, oneShard.keys().size(), "Every key must be reported");
+      // Windows start at 0, 510, 1020 and 1530, because a window lasts until 1 ms past its duration.
+      assertEquals(new TraceReplay.KeyStats(4 * 7, 200 - 4 * 7), oneShard.keys().get(42L),
+          "The zoned clock must show the time of the records being replayed");
+      assertEquals(oneShard.keys(), sevenShards.keys(),
+          "Every key must be replayed the same, whichever shard it belongs to");
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void replay_emptyTrace_reportsNothing() throws IOException {
+    Path trace = Files.createFile(dir.resolve("empty.bin"));
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      TraceReplay.Report report = new TraceReplay(
+          Map.of("leaky-bucket", clock -> new LeakyBucketRateLimiter(1, Duration.ofSeconds(1), 1, clock)),
+          pool, 2).replay(trace).get("leaky-bucket");
+
+      assertEquals(0, report.admitted() + report.rejected(), "No requests must be replayed");
+      assertEquals(0, report.keys().size(), "No keys must be reported");
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.rdiachenko.ratelimiting.cluster;
+
+import com.rdiachenko.ratelimiting.BucketSnapshot;
+import com.rdiachenko.ratelimiting.ClusterTransport;
+import com.rdiachenko.ratelimiting.ForwardedDecision;
+import com.rdiachenko.ratelimiting.PartitionedRateLimiter;
+import com.rdiachenko.ratelimiting.RateLimitDecision;
+import com.rdiachenko.ratelimiting.TokenBucketRateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.rdiachenko.ratelimiting.TokenBucketRateLimiter.RefillStrategy.GREEDY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs a cluster over a transport which lives outside the limiter's package and
+ * sends everything through Java serialization, as a transport over a network would.
+ */
+public class SerializingClusterTransportTest {
+
+  private static final int USERS = 100;
+
+  @Test
+  void allowed_requestsForwardedToRemoteOwners_getDecisionsSentBack() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    SerializingTransport transport = new SerializingTransport();
+    PartitionedRateLimiter a = node("A", Set.of("A", "B"), transport, clock);
+    node("B", Set.of("A", "B"), transport, clock);
+    RateLimitDecision decision = new RateLimitDecision();
+
+    for (int i = 0; i < USERS; i++) {
+      assertTrue(a.allowed("user-" + i), "The request 1 of user-" + i + " must pass");
+      assertFalse(a.allowed("user-" + i, decision),
+          "The request 2 of user-" + i + " must not be allowed");
+      assertEquals(Duration.ofSeconds(1).toNanos(), decision.retryAfterNanos(),
+          "The decision on user-" + i + " must describe when its token is refilled");
+
+      assertTrue(a.allowed((long) i), "The request 1 of key " + i + " must pass");
+      assertFalse(a.allowed((long) i, decision),
+          "The request 2 of key " + i + " must not be allowed");
+    }
+    assertTrue(transport.messages.get() > 0,
+        "Requests for the users owned by B must be forwarded to B");
+  }
+
+  @Test
+  void updateMembers_nodeLeaves_handsOffBucketStateThroughTheTransport() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    SerializingTransport transport = new SerializingTransport();
+    PartitionedRateLimiter a = node("A", Set.of("A", "B"), transport, clock);
+    PartitionedRateLimiter b = node("B", Set.of("A", "B"), transport, clock);
+
+    for (int i = 0; i < USERS; i++) {
+      assertTrue(a.allowed("user-" + i), "The request 1 of user-" + i + " must pass");
+      assertTrue(a.allowed((long) i), "The request 1 of key " + i + " must pass");
+    }
+
+    // Node A leaves, and its partitions move to B.
+    b.updateMembers(Set.of("B"));
+    a.updateMembers(Set.of("B"));
+    assertEquals(0, a.partitions(), "Node A must have handed off all partitions");
+
+    for (int i = 0; i < USERS; i++) {
+      assertFalse(b.allowed("user-" + i),
+          "The request 2 of user-" + i + " must not be allowed, because its bucket moved with it");
+      assertFalse(b.allowed((long) i),
+          "The request 2 of key " + i + " must not be allowed, because its bucket moved with it");
+    }
+  }
+
+  private static PartitionedRateLimiter node(String nodeId, Set<String> members,
+                                             SerializingTransport transport, Clock clock) {
+    PartitionedRateLimiter node = new PartitionedRateLimiter(nodeId, members, 64, 32,
+        () -> new TokenBucketRateLimiter(1, Duration.ofSeconds(1), 1, clock, GREEDY), transport);
+    transport.nodes.put(nodeId, node);
+    return node;
+  }
+
+  /**
+   * Sends requests, decisions and snapshots between nodes as serialized bytes,
+   * and passes them to the receiving node through its public API only.
+   */
+  private static class SerializingTransport implements ClusterTransport {
+    private final Map<String, PartitionedRateLimiter> nodes = new ConcurrentHashMap<>();
+    private final AtomicInteger messages = new AtomicInteger();
+
+    @Override
+    public ForwardedDecision[] forward(String nodeId, String[] userIds) {
+      messages.incrementAndGet();
+      String[] received = copy(userIds);
+      return copy(nodes.get(nodeId).decide(received));
+    }
+
+    @Override
+    public ForwardedDecision[] forward(String nodeId, long[] keys) {
+      messages.incrementAndGet();
+      long[] received = copy(keys);
+      return copy(nodes.get(nodeId).decide(received));
+    }
+
+    @Override
+    public void handoff(String nodeId, int partition, List<BucketSnapshot> snapshots) {
+      ArrayList<BucketSnapshot> received = copy(new ArrayList<>(snapshots));
+      nodes.get(nodeId).acceptHandoff(partition, received);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Serializable> T copy(T value) {
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+          out.writeObject(value);
+        }
+        try (ObjectInputStream in
+                 = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+          return (T) in.readObject();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (ClassNotFoundException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}